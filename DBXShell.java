@@ -29,52 +29,165 @@
 
 package will.dropbox;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
 
+import java.lang.management.ManagementFactory;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
+import java.nio.file.LinkOption;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import java.text.SimpleDateFormat;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.regex.PatternSyntaxException;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import com.dropbox.core.DbxApiException;
 import com.dropbox.core.DbxDownloader;
 import com.dropbox.core.DbxException;
 import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.NetworkIOException;
+
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.http.StandardHttpRequestor;
 
 import com.dropbox.core.v2.DbxClientV2;
 
+import com.dropbox.core.v2.files.CommitInfo;
 import com.dropbox.core.v2.files.CreateFolderErrorException;
 import com.dropbox.core.v2.files.CreateFolderResult;
+import com.dropbox.core.v2.files.DeleteArg;
+import com.dropbox.core.v2.files.DeleteBatchJobStatus;
+import com.dropbox.core.v2.files.DeleteBatchLaunch;
+import com.dropbox.core.v2.files.DeleteBatchResult;
+import com.dropbox.core.v2.files.DeleteBatchResultEntry;
 import com.dropbox.core.v2.files.DeleteErrorException;
 import com.dropbox.core.v2.files.DeleteResult;
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.DownloadErrorException;
 import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.FolderMetadata;
 import com.dropbox.core.v2.files.GetMetadataErrorException;
+import com.dropbox.core.v2.files.ListFolderContinueErrorException;
+import com.dropbox.core.v2.files.ListFolderErrorException;
+import com.dropbox.core.v2.files.ListFolderLongpollError;
+import com.dropbox.core.v2.files.ListFolderLongpollErrorException;
+import com.dropbox.core.v2.files.ListFolderLongpollResult;
 import com.dropbox.core.v2.files.ListFolderResult;
 import com.dropbox.core.v2.files.Metadata;
+import com.dropbox.core.v2.files.RelocationBatchV2JobStatus;
+import com.dropbox.core.v2.files.RelocationBatchV2Launch;
+import com.dropbox.core.v2.files.RelocationBatchV2Result;
 import com.dropbox.core.v2.files.RelocationErrorException;
+import com.dropbox.core.v2.files.RelocationPath;
 import com.dropbox.core.v2.files.SearchMatch;
 import com.dropbox.core.v2.files.SearchResult;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionFinishArg;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchJobStatus;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchLaunch;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResult;
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResultEntry;
+import com.dropbox.core.v2.files.WriteMode;
 
 import com.dropbox.core.v2.users.FullAccount;
 import com.dropbox.core.v2.users.SpaceUsage;
@@ -93,6 +206,76 @@ public final class DBXShell {
     public final static String DBX_VERSION_INFO = "1.00";
     public final static String DBX_INPUT_PROMPT = "%s:%s:>";
 
+    public final static int DBX_RANGE_WINDOW  = 16 * 1024; // first ranged read for head and tail
+    public final static int DBX_RANGE_KEEP    = 4 * 1024 * 1024; // tail bytes held, beyond this they are read again
+
+    public final static long DBX_WATCH_TIMEOUT = 90L;    // seconds held by each list_folder long poll
+    public final static long DBX_WATCH_RETRY   = 5000L;  // milliseconds to wait after a failed poll
+
+    public final static long DBX_CACHE_BUDGET = 32L * 1024 * 1024; // bytes of cached listings
+    public final static long DBX_CACHE_TTL    = 30000L;  // milliseconds an unwatched listing is trusted
+    public final static int DBX_PREFETCH_THREADS  = 4;
+    public final static int DBX_LOCAL_THREADS = 4;       // workers for 'lcp -r' and 'lrdir -r'
+    public final static int DBX_PREFETCH_CHILDREN = 32;  // subfolders listed ahead after each cd
+
+    public final static long DBX_COMPLETE_BUDGET = 250L; // milliseconds tab completion waits on the network
+
+    public final static String DBX_SESSION_FILE = ".dbxshell_session";
+    public final static int DBX_SESSION_MAGIC   = 0x44425801; // "DBX" and format version 1
+    public final static int DBX_SESSION_HISTORY = 500;        // history lines kept between runs
+
+    public final static int DBX_THROTTLE_CHUNK = 16 * 1024; // bytes taken from a token bucket at a time
+
+    public final static int DBX_HASH_BLOCK = 4 * 1024 * 1024;   // Dropbox content_hash block size
+
+    public final static boolean DBX_FLIGHT = DBXShell.hasFlightRecorder(); // jdk.jfr present, events on
+
+    public final static long DBX_METRICS_INTERVAL = 15L; // seconds between metrics textfile rewrites
+
+    public final static int DBX_UPLOAD_CHUNK = 8 * 1024 * 1024;  // bytes per upload session append
+    public final static int DBX_UPLOAD_BUFFERS = 4;              // chunks in flight for each upload pipeline
+    public final static long DBX_ARENA_BUDGET = 64L * 1024 * 1024; // direct buffer bytes shared by transfers
+    public final static int DBX_ARENA_MIN     = 64 * 1024;         // smallest arena buffer
+    public final static int DBX_WRITE_BUFFER  = 1024 * 1024;       // arena buffer behind each download file
+    public final static long DBX_PIPELINE_JOIN = 1000L;            // milliseconds to wait for a stopped stage
+    public final static long DBX_MAP_THRESHOLD = 64L * 1024 * 1024; // files at least this big upload mapped
+
+    public final static String DBX_PART_SUFFIX = ".part";
+    public final static int DBX_PART_MAGIC    = 0x44425802;  // "DBX" partial download sidecar, version 2
+    public final static int DBX_GET_RETRIES   = 3;           // times a failed get resumes on its own
+    public final static long DBX_GET_RETRY_WAIT = 2000L;     // milliseconds, grows with each retry
+
+    public final static String DBX_SYNC_FILE = ".dbxsync";   // mirror state kept in each 'sync pull' folder
+    public final static int DBX_SYNC_MAGIC    = 0x44425803;  // "DBX" sync mirror file, version 3
+    public final static int DBX_SYNC_THREADS  = 4;           // parallel downloads for each 'sync pull'
+
+    public final static long DBX_PUSH_QUIET = 2000L;    // milliseconds without events before 'autopush' sends
+    public final static long DBX_PUSH_HOLD  = 10000L;   // milliseconds a busy tree may hold back a batch
+    public final static int DBX_PUSH_BATCH  = 1000;     // entries per batch call, the API limit
+    public final static long DBX_PUSH_POLL  = 500L;     // milliseconds between batch job checks
+    public final static long DBX_PUSH_STOP  = 60000L;   // milliseconds a stop waits for a batch to commit
+
+    public final static long DBX_PROGRESS_REPORT = 500L;   // milliseconds between live transfer progress lines
+    public final static int DBX_TRANSFER_HISTORY = 100;   // finished transfers kept for 'report'
+
+    public final static int DBX_CRAWL_THREADS = 8;
+    public final static int DBX_CRAWL_NARROW  = 2;       // single-child levels before one recursive cursor
+    public final static long DBX_CRAWL_REPORT = 2000L;   // milliseconds between crawl progress lines
+
+    // every command word in process(), for tab completion
+    private final static String[] DBX_COMMAND_NAMES = { "access", "account", "appname", "autopush", "buffers", "bye", "cat", "cd", "cdir",
+            "chdir", "close", "cp", "del", "dir", "du", "exit", "find", "get", "head", "help", "history", "info", "lcd",
+            "lcp", "ldel", "ldir", "lfind", "lmdir", "locate", "lrd", "lrdir", "lrm", "lrn", "ls", "lwd", "md", "mdir",
+            "metrics", "mkdir", "mv", "open", "put", "pwd", "quit", "rd", "rdir", "ready", "ren", "report", "rm", "rmdir", "rn",
+            "script", "space", "status", "sync", "tail", "throttle", "ver", "version", "watch", "xcp" };
+
+    // the same names for the metrics label check, which must not depend on the order above
+    private final static HashSet<String> DBX_COMMAND_SET = new HashSet<String>(Arrays.asList(DBXShell.DBX_COMMAND_NAMES));
+
+    // commands whose path parameters name local files
+    private final static String[] DBX_LOCAL_COMMANDS = { "autopush", "lcd", "lcp", "ldel", "lfind", "lmdir", "lrd", "lrdir", "lrm",
+            "lrn", "put", "script" };
+
     private final static String getDefaultFileName(final String fileNamePrefix) {
 
         final StringBuilder str = new StringBuilder(fileNamePrefix);
@@ -110,6 +293,18 @@ public final class DBXShell {
 
     public final static void main(final String[] args) {
 
+        // -c "cmd; cmd; ..." runs the commands without a prompt, leaving stdin free for 'put -'
+        if (args.length == 2 && args[0].equals("-c")) {
+
+            final DBXShell dbx = new DBXShell(true);
+
+            dbx.batch(args[1]);
+            dbx.finalizer();
+
+            System.exit(dbx.corruptFlag ? 1 : 0); // a bad upload must fail the calling script
+
+        } // end if
+
         final DBXShell dbx = new DBXShell();
 
         dbx.initialize();
@@ -121,6 +316,8 @@ public final class DBXShell {
     }// end main
 
     private boolean scriptFlag;
+    private boolean headlessFlag;
+    private boolean corruptFlag;
     private boolean exitFlag;
     private boolean readyFlag;
     private boolean teamFlag;
@@ -137,12 +334,43 @@ public final class DBXShell {
 
     private Scanner scan = null;
 
+    private LineEditor editor = null;
+
     private ArrayList<String> history = null;
 
     private final String LOCAL_HOME_DIR = System.getProperty("user.dir");
 
     private PrintWriter scriptFile = null;
 
+    private PathIndex pathIndex = null;
+
+    private final Throttle throttle = new Throttle();
+
+    private final ArrayList<TransferMeter> transfers = new ArrayList<TransferMeter>();
+
+    private final TreeMap<String, AccountSession> sessions = new TreeMap<String, AccountSession>();
+
+    private HttpServer metricsServer = null;
+
+    private ScheduledExecutorService metricsWriter = null;
+
+    private File metricsFile = null;
+
+    private final ListingCache listingCache = new ListingCache(DBXShell.DBX_CACHE_BUDGET);
+
+    private final ConcurrentHashMap<String, Future<List<Metadata>>> prefetches = new ConcurrentHashMap<String, Future<List<Metadata>>>();
+
+    private ExecutorService prefetcher = null;
+
+    private volatile RemoteWatcher watcher = null;
+
+    private volatile LocalPusher pusher = null;
+
+    private FutureTask<SessionState> session = null;
+
+    private boolean sessionLocal  = false;
+    private boolean sessionRemote = false;
+
     private File outputFile;
 
     private long totalDataGet = 0L;
@@ -158,19 +386,140 @@ public final class DBXShell {
     private long closeTimer = 0;
 
     public DBXShell() {
+        this(false);
+    }// end DBXShell
+
+    public DBXShell(final boolean headless) {
 
         this.exitFlag   = false;
         this.readyFlag  = false;
         this.scriptFlag = false;
+        this.headlessFlag = headless;
 
         this.dbxCurrentWorkDir   = "";
         this.localCurrentWorkDir = System.getProperty("user.dir");
 
-        this.scan    = new Scanner(System.in);
         this.history = new ArrayList<String>(64);
 
+        if (headless) {
+            return; // commands come from the argument, stdin is left for data
+        } // end if
+
+        this.editor = LineEditor.open(this.history, new LineEditor.Completer() {
+            @Override
+            public List<String> complete(final String line) {
+                return DBXShell.this.completeLine(line);
+            }// end complete
+        });
+
+        if (this.editor == null) {
+            this.scan = new Scanner(System.in);
+        } // end if
+
     }// end DBXShell
 
+    private final void batch(final String commands) {
+
+        for (String command : commands.split(";")) {
+
+            final String[] param = this.splitLine(command.trim());
+
+            if (param.length == 0 || param[0].length() == 0) {
+                continue;
+            } // end if
+
+            this.history.add(command.trim());
+
+            try {
+                this.process(param);
+                this.shellCommandCounter++;
+            } catch (Exception ex) {
+                this.writef("Evaluate error: %s %s%n!", ex.getClass().getName(), ex.getMessage());
+            } // end try
+
+            if (this.exitFlag) {
+                return;
+            } // end if
+
+            if (this.corruptFlag) {
+                this.writef("Stopped after a content hash mismatch, remaining commands skipped.%n");
+                break;
+            } // end if
+
+        } // end for
+
+        if (this.readyFlag) {
+            this.commandRemoteClose(null);
+        } // end if
+
+        this.metricsStop();
+
+    }// end batch
+
+    private final void commandLocalAutoPush(final String[] param) { // autopush [-v] <localdir> <remotedir> | off
+
+        if (param.length == 1) {
+
+            final LocalPusher current = this.pusher;
+
+            if (current == null) {
+                this.writef("Not pushing any local directory. Use 'autopush [-v] <localdir> <remotedir>' to start.%n");
+            } else {
+                this.writef("Pushing '%s' to '%s' since %s: %d batches, %d uploads, %d moves, %d deletes, %d failed.%n",
+                        current.root, current.remote.equals("") ? "/" : current.remote, current.since,
+                        current.batches.get(), current.uploads.get(), current.moves.get(), current.deletes.get(),
+                        current.failures.get());
+            } // end if
+            return;
+
+        } // end if
+
+        if (param.length == 2 && param[1].equals("off")) {
+
+            if (this.pusher == null) {
+                this.writef("Not pushing any local directory!%n");
+            } else {
+                this.pushStop();
+                this.writef("Stopped pushing local directory.%n");
+            } // end if
+            return;
+
+        } // end if
+
+        final boolean verbose = param[1].equals("-v");
+
+        if (param.length != (verbose ? 4 : 3)) {
+            this.writef("Error: Use 'autopush [-v] <localdir> <remotedir>' or 'autopush off'!%n");
+            return;
+        } // end if
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return;
+        } // end if
+
+        final Path root = Paths.get(this.localCurrentWorkDir, param[param.length - 2]).normalize();
+        final String remote = param[param.length - 1].equals("/") ? ""
+                : this.dbxGetPathAbsolute(param[param.length - 1]);
+
+        if (!Files.isDirectory(root)) {
+            this.writef("Error: Path '%s' is not a local directory!%n", root);
+            return;
+        } // end if
+
+        try {
+
+            this.pushStart(root, remote, verbose);
+
+            this.writef("Pushing local changes in '%s' to '%s'%s.%n", root, remote.equals("") ? "/" : remote,
+                    verbose ? " and printing each batch" : "");
+
+        } catch (IOException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end commandLocalAutoPush
+
     private final void commandLocalChangeDir(final String[] param) {
 
         if (param.length == 1) {
@@ -213,6 +562,12 @@ public final class DBXShell {
 
     private final void commandLocalCopy(final String[] param) {
 
+        if (param.length == 4 && param[1].equals("-r")) {
+            this.localCopyTree(Paths.get(this.localCurrentWorkDir, param[2]).normalize(),
+                    Paths.get(this.localCurrentWorkDir, param[3]).normalize());
+            return;
+        } // end if
+
         if (param.length != 3) {
             this.writef("Error: The command 'lcp' requires two path parameters!%n");
             return;
@@ -247,6 +602,179 @@ public final class DBXShell {
 
     }// end commandLocalCopy
 
+    // Copies a tree with a pool of workers: the walk makes the directories and
+    // queues the files, unchanged files (same size and mtime) are skipped, and
+    // directory mtimes are set last, deepest first, once their files are in.
+    private final void localCopyTree(final Path source, final Path target) {
+
+        if (!Files.isDirectory(source)) {
+            this.writef("Error: Path '%s' is not a local directory!%n", source);
+            return;
+        } // end if
+
+        if (target.startsWith(source)) {
+            this.writef("Error: Target '%s' is inside source '%s'!%n", target, source);
+            return;
+        } // end if
+
+        final AtomicInteger copied = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final ArrayList<String> errors = new ArrayList<String>();
+        final ArrayList<Path> folders = new ArrayList<Path>();
+        final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+        final ExecutorService pool = Executors.newFixedThreadPool(DBXShell.DBX_LOCAL_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "dbx-lcp");
+                thread.setDaemon(true);
+                return thread;
+            }// end newThread
+        });
+
+        final long startTime = System.nanoTime();
+
+        try {
+
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+                        throws IOException {
+                    Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                    folders.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }// end preVisitDirectory
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+
+                    final Path copy = target.resolve(source.relativize(file).toString());
+
+                    pending.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+
+                            try {
+
+                                final long count = DBXShell.copyLocalFile(file, copy, attrs);
+
+                                if (count < 0L) {
+                                    skipped.incrementAndGet();
+                                } else {
+                                    copied.incrementAndGet();
+                                    bytes.addAndGet(count);
+                                } // end if
+
+                            } catch (IOException ex) {
+                                synchronized (errors) {
+                                    errors.add(file + ": " + ex.getMessage());
+                                } // end synchronized
+                            } // end try
+
+                        }// end run
+                    }));
+
+                    return FileVisitResult.CONTINUE;
+
+                }// end visitFile
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                    synchronized (errors) {
+                        errors.add(file + ": " + ex.getMessage());
+                    } // end synchronized
+                    return FileVisitResult.CONTINUE;
+                }// end visitFileFailed
+
+            });
+
+            for (Future<?> task : pending) {
+                task.get();
+            } // end for
+
+            for (int x = folders.size() - 1; x >= 0; x--) {
+                final Path dir = folders.get(x);
+                Files.setLastModifiedTime(target.resolve(source.relativize(dir).toString()),
+                        Files.getLastModifiedTime(dir));
+            } // end for
+
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } finally {
+            pool.shutdownNow();
+        } // end try
+
+        final double seconds = (System.nanoTime() - startTime) / 1.0e9;
+
+        for (int x = 0; x < Math.min(errors.size(), 10); x++) {
+            this.writef("    Error: %s%n", errors.get(x));
+        } // end for
+
+        this.writef("Local copy '%s' to '%s': %d-files copied %d-unchanged %d-failed,%n", source, target,
+                copied.get(), skipped.get(), errors.size());
+        this.writef("    %d-bytes in %4.3f seconds at %4.1f-Mb/s.%n", bytes.get(), seconds,
+                seconds > 0.0 ? bytes.get() / seconds / (1024.0 * 1024.0) : 0.0);
+
+    }// end localCopyTree
+
+    // Returns the bytes copied, or -1 when the target already has the same
+    // size and mtime. Regular files go through FileChannel.transferTo so the
+    // kernel can copy without passing the data through the JVM.
+    private final static long copyLocalFile(final Path source, final Path target, final BasicFileAttributes attrs)
+            throws IOException {
+
+        if (attrs.isSymbolicLink()) {
+
+            if (Files.isSymbolicLink(target) && Files.readSymbolicLink(target).equals(Files.readSymbolicLink(source))) {
+                return -1L;
+            } // end if
+
+            Files.copy(source, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+            return 0L;
+
+        } // end if
+
+        if (!attrs.isRegularFile()) {
+            return -1L; // sockets, devices and the like are left alone
+        } // end if
+
+        if (Files.isRegularFile(target) && Files.size(target) == attrs.size()
+                && Files.getLastModifiedTime(target).equals(attrs.lastModifiedTime())) {
+            return -1L;
+        } // end if
+
+        final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+
+        try {
+
+            final FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            try {
+
+                final long size = in.size();
+                long position = 0L;
+
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                } // end while
+
+            } finally {
+                out.close();
+            } // end try
+
+        } finally {
+            in.close();
+        } // end try
+
+        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+
+        return attrs.size();
+
+    }// end copyLocalFile
+
     private final void commandLocalDeleteFile(final String[] param) {
         
         if (param.length != 2) {
@@ -383,6 +911,11 @@ public final class DBXShell {
     }// end commandLocalMakeDir
 
     private final void commandLocalPut(final String[] param) {
+        if (param.length == 3 && param[1].equals("-")) {
+            this.commandLocalPutStream(param);
+            return;
+        } // end if
+
         if (param.length != 2) {
             this.writef("Put upload file requires local file path!%n");
             return;
@@ -402,8 +935,44 @@ public final class DBXShell {
 
     }// end commandLocalPut
 
+    private final void commandLocalPutStream(final String[] param) {
+
+        if (!this.headlessFlag) {
+            this.writef("Put from standard input needs the shell started with -c \"<commands>\"!%n");
+            return;
+        } // end if
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return;
+        } // end if
+
+        final String path = param[2].startsWith("/") ? param[2] : "/" + param[2];
+
+        if (this.dbxHasPath(path)) {
+            this.writef("File with name %s already exists!%n", param[2]);
+            return;
+        } // end if
+
+        this.uploadStreamToDropbox(System.in, path);
+
+    }// end commandLocalPutStream
+
     private final void commandLocalRemoveDir(final String[] param) {
 
+        if ((param.length == 3 || param.length == 4) && param[1].equals("-r")) {
+
+            if (param.length == 4 && !param[2].equals("-n")) {
+                this.writef("Error: Use 'lrdir -r [-n] <path>'!%n");
+                return;
+            } // end if
+
+            this.localRemoveTree(Paths.get(this.localCurrentWorkDir, param[param.length - 1]).normalize(),
+                    param.length == 4);
+            return;
+
+        } // end if
+
         if (param.length != 2) {
             this.writef("Error: The command 'lrdir' requires one path parameter!%n");
             return;
@@ -429,44 +998,182 @@ public final class DBXShell {
 
     }// end commandLocalRemoveDir
 
-    private final void commandLocalRenameFile(final String[] param) {
+    // Removes a tree bottom-up: the walk hands every file to the worker pool,
+    // then the directories go level by level, deepest first, each level in
+    // parallel. Links are removed, never followed. With 'dryRun' it only counts.
+    private final void localRemoveTree(final Path root, final boolean dryRun) {
 
-        if (param.length != 3) {
-            this.writef("Error: The command 'lrn' requires two path parameters!%n");
+        if (!Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+            this.writef("Error: Path '%s' is not a local directory!%n", root);
             return;
         } // end if
 
+        if (Paths.get(this.localCurrentWorkDir).normalize().startsWith(root) || root.getParent() == null) {
+            this.writef("Error: Path '%s' holds the local working directory!%n", root);
+            return;
+        } // end if
+
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final ArrayList<String> errors = new ArrayList<String>();
+        final TreeMap<Integer, List<Path>> levels = new TreeMap<Integer, List<Path>>(Collections.reverseOrder());
+        final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+        final ExecutorService pool = Executors.newFixedThreadPool(DBXShell.DBX_LOCAL_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "dbx-lrdir");
+                thread.setDaemon(true);
+                return thread;
+            }// end newThread
+        });
+
+        final long startTime = System.nanoTime();
+
         try {
 
-            File srcfile = new File(this.localCurrentWorkDir + "/" + param[1]);
-            File tgtfile = new File(this.localCurrentWorkDir + "/" + param[2]);
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
 
-            if (!srcfile.exists()) {
-                this.writef("Local source file: %s not found!%n", param[1]);
-                return;
-            } // end if
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
 
-            if (tgtfile.exists()) {
-                this.writef("Local target file: %s exists!%n", param[2]);
-                return;
-            } // end if
+                    final int depth = dir.getNameCount() - root.getNameCount();
 
-            if (srcfile.renameTo(tgtfile)) {
-                this.writef("Local file: %s renamed %s.%n", srcfile.getName(), tgtfile.getName());
-            } else {
-                this.writef("Problem in deleting local file: %s to %s.%n", srcfile.getName(), tgtfile.getName());
-            } // end if
+                    if (!levels.containsKey(depth)) {
+                        levels.put(depth, new ArrayList<Path>());
+                    } // end if
 
-        } catch (Exception ex) {
-            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
-        } // end try
+                    levels.get(depth).add(dir);
+                    return FileVisitResult.CONTINUE;
 
-    }// end localRenameFile
+                }// end preVisitDirectory
 
-    private final void commandLocalWorkingDir(final String[] param) // lwd
-    {
-        this.writef("%s%n", this.localCurrentWorkDir); // lwd =
-    }// end commandLocalWorkingDir
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+
+                    bytes.addAndGet(attrs.size());
+
+                    if (dryRun) {
+                        files.incrementAndGet();
+                        return FileVisitResult.CONTINUE;
+                    } // end if
+
+                    pending.add(pool.submit(DBXShell.this.localDelete(file, files, errors)));
+                    return FileVisitResult.CONTINUE;
+
+                }// end visitFile
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                    synchronized (errors) {
+                        errors.add(file + ": " + ex.getMessage());
+                    } // end synchronized
+                    return FileVisitResult.CONTINUE;
+                }// end visitFileFailed
+
+            });
+
+            for (Future<?> task : pending) {
+                task.get();
+            } // end for
+
+            final AtomicInteger folders = new AtomicInteger();
+
+            for (List<Path> level : levels.values()) {
+
+                if (dryRun) {
+                    folders.addAndGet(level.size());
+                    continue;
+                } // end if
+
+                pending.clear();
+
+                for (Path dir : level) {
+                    pending.add(pool.submit(this.localDelete(dir, folders, errors)));
+                } // end for
+
+                for (Future<?> task : pending) {
+                    task.get();
+                } // end for
+
+            } // end for
+
+            final double seconds = (System.nanoTime() - startTime) / 1.0e9;
+
+            for (int x = 0; x < Math.min(errors.size(), 10); x++) {
+                this.writef("    Error: %s%n", errors.get(x));
+            } // end for
+
+            this.writef("%s '%s': %d-files %d-directories %d-bytes, %d-failed in %4.3f seconds at %4.1f files/s.%n",
+                    dryRun ? "Would remove" : "Removed", root, files.get(), folders.get(), bytes.get(),
+                    errors.size(), seconds, seconds > 0.0 ? files.get() / seconds : 0.0);
+
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } finally {
+            pool.shutdownNow();
+        } // end try
+
+    }// end localRemoveTree
+
+    private final Runnable localDelete(final Path path, final AtomicInteger count, final List<String> errors) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Files.delete(path);
+                    count.incrementAndGet();
+                } catch (IOException ex) {
+                    synchronized (errors) {
+                        errors.add(path + ": " + ex.getMessage());
+                    } // end synchronized
+                } // end try
+
+            }// end run
+        };
+
+    }// end localDelete
+
+    private final void commandLocalRenameFile(final String[] param) {
+
+        if (param.length != 3) {
+            this.writef("Error: The command 'lrn' requires two path parameters!%n");
+            return;
+        } // end if
+
+        try {
+
+            File srcfile = new File(this.localCurrentWorkDir + "/" + param[1]);
+            File tgtfile = new File(this.localCurrentWorkDir + "/" + param[2]);
+
+            if (!srcfile.exists()) {
+                this.writef("Local source file: %s not found!%n", param[1]);
+                return;
+            } // end if
+
+            if (tgtfile.exists()) {
+                this.writef("Local target file: %s exists!%n", param[2]);
+                return;
+            } // end if
+
+            if (srcfile.renameTo(tgtfile)) {
+                this.writef("Local file: %s renamed %s.%n", srcfile.getName(), tgtfile.getName());
+            } else {
+                this.writef("Problem in deleting local file: %s to %s.%n", srcfile.getName(), tgtfile.getName());
+            } // end if
+
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end localRenameFile
+
+    private final void commandLocalWorkingDir(final String[] param) // lwd
+    {
+        this.writef("%s%n", this.localCurrentWorkDir); // lwd =
+    }// end commandLocalWorkingDir
 
     private void commandRemoteAccount(final String[] param) // boolean flag, store information in record var
     {
@@ -499,6 +1206,51 @@ public final class DBXShell {
 
     }// end commandAccount
 
+    private final void commandRemoteCat(final String[] param) {
+
+        if (param.length != 2) {
+            this.writef("Error: The command 'cat' requires one path parameter!%n");
+            return;
+        } // end if
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return;
+        } // end if
+
+        final String path = this.dbxGetPathAbsolute(param[1]);
+
+        try {
+
+            DbxDownloader<FileMetadata> download = this.client.files().download(path);
+
+            final InputStream in = download.getInputStream();
+            final byte[] buffer = new byte[DBXShell.DBX_RANGE_WINDOW];
+
+            try {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    this.writeBytes(buffer, 0, count);
+                    this.totalDataGet = count + this.totalDataGet;
+                } // end while
+            } finally {
+                download.close();
+            } // end try
+
+            System.out.flush();
+
+        } catch (DownloadErrorException err) {
+            this.writef("File with name %s does not exist!%n", param[1]);
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (IOException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end commandRemoteCat
+
     private void commandRemoteChangeDir(final String[] param) {
 
         if (!this.readyFlag) {
@@ -515,6 +1267,7 @@ public final class DBXShell {
 
             this.dbxCurrentWorkDir = "";
             this.writef("Change directory to %s.%n", this.getDbxDir());
+            this.dbxPrefetch(this.dbxCurrentWorkDir, true);
 
             return;
         } // end if
@@ -532,13 +1285,32 @@ public final class DBXShell {
 
             this.dbxCurrentWorkDir = newDir;
             this.writef("Change directory to %s.%n", this.getDbxDir());
+            this.dbxPrefetch(this.dbxCurrentWorkDir, true);
 
             return;
         } // end if
 
         String path = this.dbxGetPathAbsolute(param[1]);
 
-        if (this.dbxHasFolder(path)) {
+        // the listing 'ls' will want next doubles as the check that the folder exists
+        boolean folder;
+        try {
+
+            final Future<List<Metadata>> running = this.prefetches.get(path.toLowerCase(Locale.ROOT));
+
+            if (running != null) {
+                this.dbxPrefetchChildren(running.get());
+            } else {
+                this.dbxPrefetchChildren(this.dbxListFolder(path));
+            } // end if
+
+            folder = true;
+
+        } catch (Exception ex) {
+            folder = false;
+        } // end try
+
+        if (folder) {
 
             this.dbxCurrentWorkDir = path;
             this.writef("Change directory to %s.%n", this.dbxCurrentWorkDir);
@@ -550,6 +1322,18 @@ public final class DBXShell {
     }// end commandRemoteChangeDir
 
     private final void commandRemoteClose(final String[] param) {
+        if (param != null && param.length == 2 && param[1].startsWith("@")) {
+
+            if (this.sessions.remove(param[1].substring(1)) == null) {
+                this.writef("Error: No session named '%s' is open!%n", param[1]);
+            } else {
+                this.writef("Session '%s' closed.%n", param[1]);
+            } // end if
+
+            return;
+
+        } // end if
+
         if (!this.readyFlag) {
             this.writef("Cannot close; not connected to DropBox!%n");
             return;
@@ -557,6 +1341,9 @@ public final class DBXShell {
 
         try {
 
+            this.watchStop();
+            this.pushStop();
+
             this.client    = null;
             this.config    = null;
             this.account   = null;
@@ -629,6 +1416,7 @@ public final class DBXShell {
         try {
 
             this.client.files().copyV2(srcPath, tgtPath);
+            this.listingCache.invalidate(tgtPath.toLowerCase(Locale.ROOT));
 
             if (this.dbxHasPath(tgtPath)) {
                 this.writef("Remote path: %s copied to %s.%n", srcPath, tgtPath);
@@ -646,6 +1434,121 @@ public final class DBXShell {
 
     }// end commandRemoteCopyFile
 
+    private final void commandRemoteCrossCopy(final String[] param) { // xcp [-s] [@src:]<path> [@dst:]<path>
+
+        final boolean streamOnly = param.length == 4 && param[1].equals("-s");
+
+        if (param.length != 3 && !streamOnly) {
+            this.writef("Error: The command 'xcp' requires [-s] [@source:]<path> and [@target:]<path> parameters!%n");
+            return;
+        } // end if
+
+        final String sourceSpec = param[param.length - 2];
+        final String targetSpec = param[param.length - 1];
+
+        final AccountSession source = this.sessionOf(sourceSpec);
+        final AccountSession target = this.sessionOf(targetSpec);
+
+        if (source == null || target == null) {
+            return;
+        } // end if
+
+        final String sourcePath = this.pathOf(sourceSpec);
+        final String targetPath = this.pathOf(targetSpec);
+
+        final TransferMeter meter = new TransferMeter("xcp", sourcePath, System.console() != null);
+
+        DbxDownloader<FileMetadata> download = null;
+        UploadPipeline pipeline = null;
+
+        try {
+
+            try {
+                target.client.files().getMetadata(targetPath);
+                this.writef("File with name %s already exists!%n", targetSpec);
+                return;
+            } catch (GetMetadataErrorException ex) {
+                // not found, free to write
+            } // end try
+
+            // a copy reference moves the bytes inside Dropbox in two calls; it
+            // also copies folders, but not every account or file can share one
+            if (!streamOnly) {
+
+                try {
+
+                    final String reference = source.client.files().copyReferenceGet(sourcePath).getCopyReference();
+                    final Metadata saved = target.client.files().copyReferenceSave(reference, targetPath)
+                            .getMetadata();
+
+                    if (target.name.equals("")) {
+                        this.listingCache.invalidate(saved.getPathLower());
+                    } // end if
+
+                    // no bytes pass through the shell, but the copy still counts as moved
+                    if (saved instanceof FileMetadata) {
+                        meter.setTotal(((FileMetadata) saved).getSize());
+                        meter.add(((FileMetadata) saved).getSize());
+                    } // end if
+
+                    meter.finish();
+
+                    this.writef("Cross copied '%s' to '%s' by copy reference in %4.3f seconds.%n", sourceSpec,
+                            targetSpec, meter.getSeconds());
+
+                    this.recordTransfer(meter);
+                    return;
+
+                } catch (DbxApiException ex) {
+                    this.writef("Copy reference refused (%s), streaming instead.%n", ex.getMessage());
+                } // end try
+
+            } // end if
+
+            download = source.client.files().download(sourcePath);
+
+            final FileMetadata from = download.getResult();
+            meter.setTotal(from.getSize());
+
+            final InputStream in = new MeteredInputStream(this.throttle.upload(download.getInputStream()), meter);
+
+            // the next chunks download and hash during each append
+            pipeline = new UploadPipeline(in, "xcp");
+
+            final FileMetadata metadata = DBXShell.uploadSession(target.client, pipeline, targetPath,
+                    from.getContentHash());
+
+            meter.finish();
+
+            if (target.name.equals("")) {
+                this.listingCache.invalidate(metadata.getPathLower());
+            } // end if
+
+            if (this.hashMismatch(metadata, pipeline.getHash())) {
+                return;
+            } // end if
+
+            this.writef("Cross copied '%s' to '%s' total bytes: %d time: %4.3f seconds at %4.3f bytes per second.%n",
+                    sourceSpec, targetSpec, metadata.getSize(), meter.getSeconds(), meter.getAverageRate());
+
+            this.recordTransfer(meter);
+
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            } // end if
+            if (download != null) {
+                download.close();
+            } // end if
+            meter.finish();
+        } // end try
+
+    }// end commandRemoteCrossCopy
+
     private void commandRemoteDir(final String[] param) {
 
         if (!this.readyFlag) {
@@ -661,10 +1564,7 @@ public final class DBXShell {
 
         try {
 
-            ListFolderResult builder = client.files().listFolderBuilder(this.dbxCurrentWorkDir)
-                    .withIncludeDeleted(false).withRecursive(false).withIncludeMediaInfo(false).start();
-
-            List<Metadata> entries = builder.getEntries();
+            List<Metadata> entries = this.dbxListFolder(this.dbxCurrentWorkDir);
 
             for (Metadata metadata : entries) {
 
@@ -689,6 +1589,144 @@ public final class DBXShell {
 
     }// end commandRemoteDir
 
+    private void commandRemoteDiskUsage(final String[] param) { // du [-d <depth>] [-n <top>] [<path>]
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return;
+        } // end if
+
+        int depth = 1;
+        int top = 20;
+        String root = this.dbxCurrentWorkDir;
+
+        try {
+
+            for (int x = 1; x < param.length; x++) {
+                if (param[x].equals("-d") && x + 1 < param.length) {
+                    depth = Integer.parseInt(param[++x]);
+                } else if (param[x].equals("-n") && x + 1 < param.length) {
+                    top = Integer.parseInt(param[++x]);
+                } else if (param[x].equals("/")) {
+                    root = "";
+                } else {
+                    root = this.dbxGetPathAbsolute(param[x]);
+                } // end if
+            } // end for
+
+        } catch (NumberFormatException ex) {
+            this.writef("Error: The command 'du' requires numeric depth and count values!%n");
+            return;
+        } // end try
+
+        if (depth < 0 || top < 1) {
+            this.writef("Error: The command 'du' requires depth >= 0 and count >= 1!%n");
+            return;
+        } // end if
+
+        try {
+
+            final long startTime = System.currentTimeMillis();
+
+            final String base = root;
+            final int levels = depth;
+
+            final HashMap<String, UsageTotal> totals = new HashMap<String, UsageTotal>();
+
+            final UsageTotal grand = new UsageTotal(root.equals("") ? "/" : root);
+
+            final RemoteCrawler crawler = new RemoteCrawler(this.client, DBXShell.DBX_CRAWL_THREADS);
+
+            crawler.crawl(root, new RemoteCrawler.Visitor() {
+                @Override
+                public void visit(final List<Metadata> entries) {
+
+                    final HashMap<String, UsageTotal> page = new HashMap<String, UsageTotal>();
+                    final UsageTotal pageTotal = new UsageTotal(grand.path);
+
+                    for (Metadata meta : entries) {
+
+                        if (!(meta instanceof FileMetadata)) {
+                            continue;
+                        } // end if
+
+                        final long size = ((FileMetadata) meta).getSize();
+                        final String path = meta.getPathDisplay();
+
+                        pageTotal.add(size);
+
+                        // charge the file to each enclosing folder down to the requested depth
+                        int slash = base.length();
+                        for (int level = 1; level <= levels; level++) {
+
+                            slash = path.indexOf('/', slash + 1);
+                            if (slash < 0) {
+                                break;
+                            } // end if
+
+                            final String prefix = path.substring(0, slash);
+
+                            UsageTotal total = page.get(prefix);
+                            if (total == null) {
+                                total = new UsageTotal(prefix);
+                                page.put(prefix, total);
+                            } // end if
+
+                            total.add(size);
+
+                        } // end for
+
+                    } // end for
+
+                    synchronized (totals) {
+
+                        grand.merge(pageTotal);
+
+                        for (UsageTotal total : page.values()) {
+                            final UsageTotal known = totals.get(total.path);
+                            if (known == null) {
+                                totals.put(total.path, total);
+                            } else {
+                                known.merge(total);
+                            } // end if
+                        } // end for
+
+                    } // end synchronized
+
+                }// end visit
+            }, this.crawlProgress(crawler));
+
+            totals.put(grand.path, grand);
+
+            final ArrayList<UsageTotal> sorted = new ArrayList<UsageTotal>(totals.values());
+            Collections.sort(sorted, new Comparator<UsageTotal>() {
+                @Override
+                public int compare(final UsageTotal a, final UsageTotal b) {
+                    return Long.compare(b.bytes, a.bytes);
+                }// end compare
+            });
+
+            final long closeTime = System.currentTimeMillis();
+
+            this.writef("Remote disk usage for '%s' to depth %d:%n%n", grand.path, depth);
+
+            for (int x = 0; x < sorted.size() && x < top; x++) {
+                final UsageTotal total = sorted.get(x);
+                this.writef("    %16d-bytes %10d-Mb %10d-files  %s%n", total.bytes, total.bytes / (1024 * 1024),
+                        total.files, total.path);
+            } // end for
+
+            this.writef("%nScanned %d entries in %d folders in %d milliseconds.%n", crawler.getEntries(),
+                    crawler.getFolders(), closeTime - startTime);
+
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end commandRemoteDiskUsage
+
     private void commandRemoteFind(final String[] param) {
         if (param.length != 3) {
             this.writef("Error: The command 'find' requires two parameters!%n");
@@ -741,31 +1779,94 @@ public final class DBXShell {
 
     }// end commandRemoteFind
 
-    private void commandRemoteInfo(final String[] param) {
+    private final void commandRemoteHead(final String[] param) { // head [-c <bytes> | -n <lines>] <path>
 
-        if (param.length != 2) {
-            this.writef("Error: The command 'info' requires one path parameter!%n");
-            return;
-        } // end if
+        final PeekCount count = this.peekArguments("head", param);
 
-        if (!this.readyFlag) {
-            this.writef("Not connected to DropBox!%n");
+        if (count == null) {
             return;
         } // end if
 
+        final String path = this.dbxGetPathAbsolute(param[param.length - 1]);
+
         try {
 
-            if (this.getDbxDir().equalsIgnoreCase("/")) {
-                if (param[1].charAt(0) == '/') {
-                    this.getMetadata(param[1]);
-                } else {
-                    this.getMetadata(this.getDbxDir() + param[1]); // '/' + param[1]
-                }//end if
-            } else {
-                if (param[1].charAt(0) == '/') {
-                    this.getMetadata(param[1]);
-                } else {
-                    this.getMetadata(this.getDbxDir() + "/" + param[1]);
+            if (count.bytes) {
+
+                if (count.count > 0) {
+                    this.dbxWriteRange(path, 0L, count.count);
+                } // end if
+
+            } else if (count.count > 0) {
+
+                // stream from the front and hang up once enough lines are out
+                final DbxDownloader<FileMetadata> download = this.client.files().download(path);
+
+                final InputStream in = download.getInputStream();
+                final byte[] buffer = new byte[DBXShell.DBX_RANGE_WINDOW];
+
+                try {
+
+                    long lines = 0L;
+                    int read;
+
+                    while (lines < count.count && (read = in.read(buffer)) != -1) {
+
+                        int end = 0;
+                        while (end < read && lines < count.count) {
+                            if (buffer[end++] == '\n') {
+                                lines++;
+                            } // end if
+                        } // end while
+
+                        this.writeBytes(buffer, 0, end);
+                        this.totalDataGet = read + this.totalDataGet;
+
+                    } // end while
+
+                } finally {
+                    download.close();
+                } // end try
+
+            } // end if
+
+            System.out.flush();
+
+        } catch (DownloadErrorException err) {
+            this.writef("File with name %s does not exist!%n", param[param.length - 1]);
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end commandRemoteHead
+
+    private void commandRemoteInfo(final String[] param) {
+
+        if (param.length != 2) {
+            this.writef("Error: The command 'info' requires one path parameter!%n");
+            return;
+        } // end if
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return;
+        } // end if
+
+        try {
+
+            if (this.getDbxDir().equalsIgnoreCase("/")) {
+                if (param[1].charAt(0) == '/') {
+                    this.getMetadata(param[1]);
+                } else {
+                    this.getMetadata(this.getDbxDir() + param[1]); // '/' + param[1]
+                }//end if
+            } else {
+                if (param[1].charAt(0) == '/') {
+                    this.getMetadata(param[1]);
+                } else {
+                    this.getMetadata(this.getDbxDir() + "/" + param[1]);
                 } // end if
 
             } // end if
@@ -777,6 +1878,67 @@ public final class DBXShell {
 
     }// end commandRemoteInfo
 
+    private final void commandRemoteLocate(final String[] param) {
+
+        if (param.length < 2) {
+            this.writef("Error: The command 'locate' requires a pattern or '-u' parameter!%n");
+            return;
+        } // end if
+
+        if (param[1].equals("-u")) {
+
+            if (!this.readyFlag) {
+                this.writef("Not connected to DropBox!%n");
+                return;
+            } // end if
+
+            String root = "";
+            if (param.length > 2 && !param[2].equals("/")) {
+                root = this.dbxGetPathAbsolute(param[2]);
+            } // end if
+
+            this.locateUpdate(root);
+            return;
+        } // end if
+
+        if (this.pathIndex == null) {
+            this.writef("Locate: no path index; use 'locate -u [<path>]' to build the index.%n");
+            return;
+        } // end if
+
+        final boolean regex = param[1].equals("-r");
+
+        if (regex && param.length != 3) {
+            this.writef("Error: The command 'locate -r' requires one regular expression parameter!%n");
+            return;
+        } // end if
+
+        try {
+
+            long startTime = System.nanoTime();
+
+            List<String> found;
+            if (regex) {
+                found = this.pathIndex.findRegex(param[2]);
+            } else {
+                found = this.pathIndex.find(param[1]);
+            } // end if
+
+            long closeTime = System.nanoTime();
+
+            for (String path : found) {
+                this.writef("    %s%n", path);
+            } // end for
+
+            this.writef("Locate found %d matches in %d entries in %4.3f milliseconds.%n", found.size(),
+                    this.pathIndex.size(), (closeTime - startTime) / 1.0e6);
+
+        } catch (PatternSyntaxException ex) {
+            this.writef("Locate pattern syntax error: %s%n", ex.getMessage());
+        } // end try
+
+    }// end commandRemoteLocate
+
     private final void commandRemoteMakeDirectory(final String[] param) {
 
         if (param.length != 2) {
@@ -794,6 +1956,7 @@ public final class DBXShell {
         try {
             
             CreateFolderResult cfr = client.files().createFolderV2(path); // cat remote dir path ??
+            this.listingCache.invalidate(path.toLowerCase(Locale.ROOT));
 
             this.writef("Created %s remote directory.%n", cfr.getMetadata().getPathDisplay());
 
@@ -816,6 +1979,11 @@ public final class DBXShell {
 
     private final void commandRemoteOpen(final String[] param) {
 
+        if (param.length > 1 && param[1].startsWith("@")) {
+            this.sessionOpen(param);
+            return;
+        } // end if
+
         if (this.readyFlag) {
             this.writef("Already connected to DropBox!%n");
             return;
@@ -835,12 +2003,18 @@ public final class DBXShell {
 
         this.dbxCreateClient(this.appName, this.access);
 
+        if (!this.readyFlag) {
+            return;
+        } // end if
+
         if (account.getAccountType() == AccountType.BASIC) {
             this.teamFlag = false;
         } else {
             this.teamFlag = true;
         } // end if
 
+        this.sessionApplyRemote();
+
     }// end commandRemoteOpen
 
     private final void commandRemoteRemoveDirectory(final String[] param) {
@@ -865,6 +2039,7 @@ public final class DBXShell {
         try {
 
             DeleteResult dr = client.files().deleteV2(path);
+            this.listingCache.invalidate(path.toLowerCase(Locale.ROOT));
 
             this.writef("Removed directory: %s%n", dr.getMetadata().getPathDisplay());
 
@@ -934,11 +2109,13 @@ public final class DBXShell {
 
             if (param[1].charAt(0) == '/') {
                 DeleteResult dr = client.files().deleteV2(param[1]);
+                this.listingCache.invalidate(dr.getMetadata().getPathLower());
 
                 this.writef("Deleted file: %s%n", dr.getMetadata().getPathLower());
             } else {
 
                 DeleteResult dr = client.files().deleteV2(this.dbxCurrentWorkDir + "/" + param[1]);
+                this.listingCache.invalidate(dr.getMetadata().getPathLower());
 
                 this.writef("Deleted file: %s%n", dr.getMetadata().getPathLower());
             }//end if
@@ -1047,6 +2224,8 @@ public final class DBXShell {
         try {
 
             this.client.files().moveV2(srcPath, tgtPath);
+            this.listingCache.invalidate(srcPath.toLowerCase(Locale.ROOT));
+            this.listingCache.invalidate(tgtPath.toLowerCase(Locale.ROOT));
 
             if (this.dbxHasPath(tgtPath)) {
                 this.writef("Remote path: %s renamed %s.%n", srcPath, tgtPath);
@@ -1104,6 +2283,187 @@ public final class DBXShell {
 
     }// end commandRemoteSpace
 
+    private final void commandRemoteSync(final String[] param) { // sync pull <remotedir> <localdir>
+
+        if (param.length != 4 || !param[1].equals("pull")) {
+            this.writef("Error: Use 'sync pull <remotedir> <localdir>'!%n");
+            return;
+        } // end if
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return;
+        } // end if
+
+        final String root = param[2].equals("/") ? "" : this.dbxGetPathAbsolute(param[2]);
+
+        this.syncPull(root, Paths.get(this.localCurrentWorkDir, param[3]).normalize());
+
+    }// end commandRemoteSync
+
+    private final void commandRemoteTail(final String[] param) { // tail [-c <bytes> | -n <lines>] <path>
+
+        final PeekCount count = this.peekArguments("tail", param);
+
+        if (count == null) {
+            return;
+        } // end if
+
+        final String path = this.dbxGetPathAbsolute(param[param.length - 1]);
+
+        try {
+
+            final Metadata meta = this.client.files().getMetadata(path);
+
+            if (!(meta instanceof FileMetadata)) {
+                this.writef("Path: '%s' entry is not file!%n", path);
+                return;
+            } // end if
+
+            final long size = ((FileMetadata) meta).getSize();
+
+            if (count.bytes) {
+
+                final long start = Math.max(0L, size - count.count);
+
+                if (size > start) {
+                    this.dbxWriteRange(path, start, size - start);
+                } // end if
+
+            } else if (count.count > 0L) {
+
+                // read growing windows back from the end until enough lines are seen,
+                // holding them only while they are small enough to print from memory
+                byte[] data = new byte[0];
+
+                long end = size;
+                long window = DBXShell.DBX_RANGE_WINDOW;
+                long lines = 0L;
+                long cut = -1L;
+
+                while (end > 0L && cut < 0L) {
+
+                    final long start = Math.max(0L, end - window);
+                    final byte[] chunk = this.dbxReadRange(path, start, end - start);
+
+                    // the newline ending the last line does not start a new one
+                    int x = chunk.length - 1;
+                    if (end == size && x >= 0 && chunk[x] == '\n') {
+                        x--;
+                    } // end if
+
+                    for (; x >= 0; x--) {
+                        if (chunk[x] == '\n' && ++lines == count.count) {
+                            cut = start + x + 1;
+                            break;
+                        } // end if
+                    } // end for
+
+                    if (data != null && chunk.length + data.length <= DBXShell.DBX_RANGE_KEEP) {
+                        final byte[] joined = new byte[chunk.length + data.length];
+                        System.arraycopy(chunk, 0, joined, 0, chunk.length);
+                        System.arraycopy(data, 0, joined, chunk.length, data.length);
+                        data = joined;
+                    } else {
+                        data = null; // too long to hold, stream it again below
+                    } // end if
+
+                    end = start;
+                    window = Math.min(window * 2, DBXShell.DBX_RANGE_WINDOW * 64);
+
+                } // end while
+
+                if (cut < 0L) {
+                    cut = 0L; // fewer lines than asked for, print the whole file
+                } // end if
+
+                if (data != null) {
+                    this.writeBytes(data, (int) (cut - end), data.length - (int) (cut - end));
+                } else {
+                    this.dbxWriteRange(path, cut, size - cut);
+                } // end if
+
+            } // end if
+
+            System.out.flush();
+
+        } catch (GetMetadataErrorException err) {
+            this.writef("File with name %s does not exist!%n", param[param.length - 1]);
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end commandRemoteTail
+
+    private final void commandRemoteWatch(final String[] param) { // watch [-v] [<path>] | watch off
+
+        if (param.length == 1) {
+
+            final RemoteWatcher current = this.watcher;
+
+            if (current == null) {
+                this.writef("Not watching any remote directory. Use 'watch [-v] [<path>]' to start.%n");
+            } else {
+                this.writef("Watching '%s' since %s: %d change batches, %d entries changed, %d folders cached.%n",
+                        current.root.equals("") ? "/" : current.root, current.since, current.batches.get(),
+                        current.changes.get(), this.listingCache.size());
+            } // end if
+            return;
+
+        } // end if
+
+        if (param[1].equals("off")) {
+
+            if (this.watcher == null) {
+                this.writef("Not watching any remote directory!%n");
+            } else {
+                this.watchStop();
+                this.writef("Stopped watching remote directory.%n");
+            } // end if
+            return;
+
+        } // end if
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return;
+        } // end if
+
+        boolean verbose = false;
+        String root = this.dbxCurrentWorkDir;
+
+        for (int x = 1; x < param.length; x++) {
+            if (param[x].equals("-v")) {
+                verbose = true;
+            } else if (param[x].equals("/")) {
+                root = "";
+            } else {
+                root = this.dbxGetPathAbsolute(param[x]);
+            } // end if
+        } // end for
+
+        if (!root.equals("") && !this.dbxHasFolder(root)) {
+            this.writef("Watch: directory '%s' does not exist!%n", root);
+            return;
+        } // end if
+
+        try {
+
+            this.watchStart(root, null, verbose);
+
+            this.writef("Watching '%s' for remote changes%s.%n", root.equals("") ? "/" : root,
+                    verbose ? " and printing change events" : "");
+
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end commandRemoteWatch
+
     private void commandRemoteWorkingDir(final String[] param) {
         if (!this.readyFlag) {
             this.writef("Not connected to DropBox!%n");
@@ -1159,15 +2519,53 @@ public final class DBXShell {
 
     }// end commandShellAppName
 
+    private final void commandShellBuffers(final String[] param) { // buffers [<size>]
+
+        if (param.length == 2) {
+
+            try {
+
+                final long budget = Throttle.parseRate(param[1]);
+
+                if (budget <= 0L) {
+                    this.writef("Error: The buffer arena needs a size above zero!%n");
+                    return;
+                } // end if
+
+                if (BufferArena.SHARED.setBudget(budget) < budget) {
+                    this.writef("Budget capped at %d-Kb, half the JVM's direct memory.%n", BufferArena.LIMIT / 1024);
+                } // end if
+
+            } catch (IllegalArgumentException ex) {
+                this.writef("Error: size '%s' is not a byte count like 512K or 2M!%n", param[1]);
+                return;
+            } // end try
+
+        } else if (param.length != 1) {
+            this.writef("Error: Use 'buffers [<size>]' with K/M/G suffixes!%n");
+            return;
+        } // end if
+
+        final long[] arena = BufferArena.SHARED.snapshot();
+
+        this.writef("Transfer buffer arena: %d-Kb budget, %d-Kb allocated, %d-Kb leased, %d waits.%n",
+                arena[0] / 1024, arena[1] / 1024, arena[2] / 1024, arena[6]);
+
+    }// end commandShellBuffers
+
     private void commandShellBye(final String[] param) {
 
         this.closeDateTime = new Date().toString();
         this.closeTimer = System.currentTimeMillis();
 
+        this.sessionSave();
+
         if (this.readyFlag) {
             this.commandRemoteClose(param);
         } // end if
 
+        this.metricsStop();
+
         this.exitFlag = true;
         this.writef("Goodbye!%n"); // give user name ??
 
@@ -1191,22 +2589,32 @@ public final class DBXShell {
                 "    account                                      - print account status information.                     %n");
         this.writef(
                 "    appname [<application-name>]                 - get or set account application name.                  %n");
+        this.writef(
+                "    autopush [-v] [<localdir> <remotedir> | off] - push local changes to remote in the background.       %n");
+        this.writef(
+                "    buffers [<size>]                             - print or set the transfer buffer arena budget.        %n");
         this.writef(
                 "    bye                                          - exit shell and if connected close.                    %n");
+        this.writef(
+                "    cat <path>                                   - stream remote file to the console.                    %n");
         this.writef(
                 "    (cd | chdir | cdir) ( <path> | .. )          - change remote directory.                              %n");
         this.writef(
-                "    close                                        - close account connnection.                            %n");
+                "    close [@<name>]                              - close account connnection or named session.           %n");
         this.writef(
                 "    cp <source-path> <target-path>               - copy remote file or directory.                        %n");
         this.writef(
                 "    (del | rm) <path>                            - delete remote file entry.                             %n");
         this.writef(
                 "    (dir | ls)                                   - list remote directories and files.                    %n");
+        this.writef(
+                "    du [-d <depth>] [-n <count>] [<path>]        - report largest remote folders by total bytes.         %n");
         this.writef(
                 "    find <path> <glob>                           - search in remote path for file or directory that matches query.%n");
         this.writef(
                 "    get  <path>                                  - get download remote file to local directory.          %n");
+        this.writef(
+                "    head [-c <bytes> | -n <lines>] <path>        - print first part of remote file with a ranged read.   %n");
         this.writef(
                 "    help                                         - list shell commands or details about a valid command. %n");
         this.writef(
@@ -1216,7 +2624,7 @@ public final class DBXShell {
         this.writef(
                 "    lcd ( <path> | .. )                          - change local current working directory.               %n");
         this.writef(
-                "    lcp <source-path> <target-path>              - copy local file or directory.                         %n");
+                "    lcp [-r] <source-path> <target-path>         - copy local file, or with -r a directory tree.         %n");
         this.writef(
                 "    ldel <path>                                  - delete local file.                                    %n");
         this.writef(
@@ -1226,17 +2634,27 @@ public final class DBXShell {
         this.writef(
                 "    lmdir <path>                                 - create local directory.                               %n");
         this.writef(
-                "    lrdir <path>                                 - remove local directory.                               %n");
+                "    locate ( -u [<path>] | [-r] <pattern> )      - update local path index or search it for pattern.     %n");
+        this.writef(
+                "    lrdir [-r [-n]] <path>                       - remove local directory, -r with contents, -n counts.  %n");
         this.writef(
                 "    lrn <source-path> <target-path>              - rename local file or directory.                       %n");
         this.writef(
                 "    lwd                                          - print local current working directory.                %n");
         this.writef(
                 "    (mdir | mkdir) <path>                        - make remote directory.                                %n");
+        this.writef(
+                "    metrics [-p <port> | off]                    - print, serve on a port or stop Prometheus metrics.    %n");
+        this.writef(
+                "    metrics -f <file> [<seconds>]                - write Prometheus metrics to file, again every seconds.%n");
         this.writef(
                 "    open [<application-name> <access-token>]     - connect shell with application name and access token. %n");
+        this.writef(
+                "    open @<name> <app-name> <access-token>       - open another named account session.                   %n");
         this.writef(
                 "    put  <path>                                  - put upload local file to remote directory.            %n");
+        this.writef(
+                "    put  - <path>                                - put upload standard input, with -c only.              %n");
         this.writef(
                 "    pwd                                          - print remote current working directory.               %n");
         this.writef(
@@ -1251,8 +2669,22 @@ public final class DBXShell {
                 "    script [<filename>]                          - make transcript of shell session to file.             %n");
         this.writef(
                 "    space                                        - print storage space utilization.                      %n");
+        this.writef(
+                "    sync pull <remotedir> <localdir>             - mirror remote folder, later runs get only changes.  %n");
+        this.writef(
+                "    tail [-c <bytes> | -n <lines>] <path>        - print last part of remote file with a ranged read.    %n");
+        this.writef(
+                "    throttle [per] (up | down) (<rate> | off)    - limit all or each upload or download rate.            %n");
+        this.writef(
+                "    throttle schedule <hh:mm-hh:mm> <up> <down>  - use other total limits during a daily window.         %n");
+        this.writef(
+                "    throttle schedule off                        - drop the daily window limits.                         %n");
         this.writef(
                 "    (ver | version)                              - print shell version information.                      %n");
+        this.writef(
+                "    watch [ -v [<path>] | <path> | off ]         - keep listings current from remote change long polls.  %n");
+        this.writef(
+                "    xcp [-s] [@<name>:]<path> [@<name>:]<path>   - copy between sessions by copy reference, -s streams.  %n");
         this.writef(
                 "                                                                                                         %n");
         System.out.flush();
@@ -1269,55 +2701,200 @@ public final class DBXShell {
 
     }// end commandShellHistory
 
-    private void commandShellReady(final String[] param) {
+    private final void commandShellMetrics(final String[] param) {
+        // metrics [-p <port> | -f <file> [<seconds>] | off]
 
-        if (this.readyFlag) {
-            this.writef("Ready! Shell is connected to DropBox!%n");
-        } else {
-            this.writef(
-                    "Not Ready! Shell is not connected to DropBox! Use command 'open' to open connection with shell.%n");
+        if (param.length == 1) {
+            this.writef("%s", this.metricsText());
+            return;
         } // end if
 
-        if (this.scriptFlag) {
-            this.writef("Creating a transcript of shell session command usage to file: %s.%n",
-                    this.outputFile.getName());
-        } else {
-            this.writef(
-                    "No current transcript of shell session. Use command 'script' <filename> to create a transcript.%n");
+        if (param.length == 2 && param[1].equals("off")) {
+            this.metricsStop();
+            this.writef("Metrics export stopped.%n");
+            return;
         } // end if
 
-    }// end commandShellReady
+        try {
 
-    private final void commandShellReport(final String[] param) {
+            if (param.length == 3 && param[1].equals("-p")) {
 
-        this.writef("%n");
-        this.writef("    [============>>> DropBox Shell Report <<<============]%n");
-        this.writef("%n");
+                final int port = Integer.parseInt(param[2]);
 
-        this.writef("      Platform: %s %s v.%s %n", System.getProperty("os.name"), System.getProperty("os.arch"),
-                System.getProperty("os.version"));
-        this.writef("      Userinfo: %s:[%s]    %n", System.getProperty("user.name"), System.getProperty("user.home"));
-        this.writef("      Home Dir: %s         %n", System.getProperty("user.dir"));
-        this.writef("%n");
+                this.metricsStop();
 
-        this.writef("      Session Begin: %s%n", this.startDateTime);
-        this.writef("      Session Close: %s%n", this.closeDateTime);
-        this.writef("%n");
-        this.writef("           === Total for Session ===%n");
-        this.writef("%n");
+                this.metricsServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+                this.metricsServer.createContext("/metrics", new HttpHandler() {
+                    @Override
+                    public void handle(final HttpExchange exchange) throws IOException {
 
-        this.closeTimer = System.currentTimeMillis();
+                        final byte[] body = DBXShell.this.metricsText().getBytes(StandardCharsets.UTF_8);
 
-        this.writef("      Total command count:%4d-commands %n", this.shellCommandCounter);
-        this.writef("      Total session timer:%4d-seconds  %n", (this.closeTimer - this.startTimer) / 1000L);
+                        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                        exchange.sendResponseHeaders(200, body.length);
 
-        this.writef("%n");
+                        final OutputStream out = exchange.getResponseBody();
+                        out.write(body);
+                        out.close();
+
+                    }// end handle
+                });
+                this.metricsServer.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable task) {
+                        final Thread thread = new Thread(task, "dbx-metrics");
+                        thread.setDaemon(true);
+                        return thread;
+                    }// end newThread
+                }));
+                this.metricsServer.start();
+
+                this.writef("Metrics served at http://127.0.0.1:%d/metrics%n", port);
+                return;
+
+            } // end if
+
+            if ((param.length == 3 || param.length == 4) && param[1].equals("-f")) {
+
+                final File file = new File(param[2]).isAbsolute() ? new File(param[2])
+                        : new File(this.localCurrentWorkDir, param[2]);
+                final long seconds = param.length == 4 ? Long.parseLong(param[3]) : DBXShell.DBX_METRICS_INTERVAL;
+
+                if (seconds <= 0L) {
+                    this.writef("Error: The metrics interval must be a positive number of seconds!%n");
+                    return;
+                } // end if
+
+                this.metricsStop();
+
+                this.metricsFile = file;
+                this.metricsWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable task) {
+                        final Thread thread = new Thread(task, "dbx-metrics");
+                        thread.setDaemon(true);
+                        return thread;
+                    }// end newThread
+                });
+                this.metricsWriter.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        DBXShell.this.metricsWrite(file);
+                    }// end run
+                }, 0L, seconds, TimeUnit.SECONDS);
+
+                this.writef("Metrics written to '%s' every %d seconds.%n", file.getPath(), seconds);
+                return;
+
+            } // end if
+
+        } catch (NumberFormatException ex) {
+            this.writef("Error: '%s' is not a number!%n", ex.getMessage());
+            return;
+        } catch (IOException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+            return;
+        } // end try
+
+        this.writef("Error: Use 'metrics [-p <port> | -f <file> [<seconds>] | off]'!%n");
+
+    }// end commandShellMetrics
+
+    private void commandShellReady(final String[] param) {
+
+        if (this.readyFlag) {
+            this.writef("Ready! Shell is connected to DropBox!%n");
+        } else {
+            this.writef(
+                    "Not Ready! Shell is not connected to DropBox! Use command 'open' to open connection with shell.%n");
+        } // end if
+
+        for (AccountSession session : this.sessions.values()) {
+            this.writef("Session '@%s' is connected to '%s'.%n", session.name,
+                    session.account.getName().getDisplayName());
+        } // end for
+
+        if (this.scriptFlag) {
+            this.writef("Creating a transcript of shell session command usage to file: %s.%n",
+                    this.outputFile.getName());
+        } else {
+            this.writef(
+                    "No current transcript of shell session. Use command 'script' <filename> to create a transcript.%n");
+        } // end if
+
+    }// end commandShellReady
+
+    private final void commandShellReport(final String[] param) {
+
+        this.writef("%n");
+        this.writef("    [============>>> DropBox Shell Report <<<============]%n");
+        this.writef("%n");
+
+        this.writef("      Platform: %s %s v.%s %n", System.getProperty("os.name"), System.getProperty("os.arch"),
+                System.getProperty("os.version"));
+        this.writef("      Userinfo: %s:[%s]    %n", System.getProperty("user.name"), System.getProperty("user.home"));
+        this.writef("      Home Dir: %s         %n", System.getProperty("user.dir"));
+        this.writef("%n");
+
+        this.writef("      Session Begin: %s%n", this.startDateTime);
+        this.writef("      Session Close: %s%n", this.closeDateTime);
+        this.writef("%n");
+        this.writef("           === Total for Session ===%n");
+        this.writef("%n");
+
+        this.closeTimer = System.currentTimeMillis();
+
+        this.writef("      Total command count:%4d-commands %n", this.shellCommandCounter);
+        this.writef("      Total session timer:%4d-seconds  %n", (this.closeTimer - this.startTimer) / 1000L);
+
+        this.writef("%n");
         this.writef("           === Total Data Traffic ===%n");
         this.writef("%n");
 
         this.writef("      Total bytes data get:%10d-bytes%n", this.totalDataGet);
         this.writef("      Total bytes data put:%10d-bytes%n", this.totalDataPut);
 
+        this.writef("%n");
+        this.writef("           === Transfers ===%n");
+        this.writef("%n");
+
+        synchronized (this.transfers) {
+
+            long bytes = 0L;
+            double seconds = 0.0;
+
+            for (TransferMeter meter : this.transfers) {
+                this.writef("      %s %12d-bytes %10.3f-seconds %14.1f-bytes/s  %s%n", meter.getDirection(),
+                        meter.getBytes(), meter.getSeconds(), meter.getAverageRate(), meter.getName());
+                bytes += meter.getBytes();
+                seconds += meter.getSeconds();
+            } // end for
+
+            this.writef("      Total transfers:%4d-transfers %12d-bytes %14.1f-bytes/s average%n",
+                    this.transfers.size(), bytes, seconds > 0.0 ? bytes / seconds : 0.0);
+
+        } // end synchronized
+
+        this.writef("%n");
+        this.writef("           === Listing Cache ===%n");
+        this.writef("%n");
+
+        this.writef("      Cached folders:%6d-folders %8d-Kb%n", this.listingCache.size(),
+                this.listingCache.getBytes() / 1024);
+        this.writef("      Cache lookups: %6d-hits    %8d-misses%n", this.listingCache.getHits(),
+                this.listingCache.getMisses());
+
+        this.writef("%n");
+        this.writef("           === Buffer Arena ===%n");
+        this.writef("%n");
+
+        final long[] arena = BufferArena.SHARED.snapshot();
+
+        this.writef("      Arena memory:  %6d-Kb budget %8d-Kb allocated %8d-Kb leased %8d-Kb peak%n",
+                arena[0] / 1024, arena[1] / 1024, arena[2] / 1024, arena[3] / 1024);
+        this.writef("      Arena leases:  %6d-leases %8d-allocations %6d-waits %8d-ms waiting%n", arena[4], arena[5],
+                arena[6], arena[7]);
+
         this.writef("%n");
         this.writef("    [<<<=========----------------------------=========>>>]%n");
         this.writef("%n");
@@ -1342,6 +2919,59 @@ public final class DBXShell {
 
     }// end commandShellScript
 
+    private final void commandShellThrottle(final String[] param) {
+        // throttle [per] (up | down) (<rate> | off) | throttle schedule (<hh:mm-hh:mm> <up> <down> | off)
+
+        try {
+
+            if (param.length == 1) {
+                // report below
+            } else if (param[1].equals("schedule") && param.length == 3 && param[2].equals("off")) {
+                this.throttle.setSchedule(-1, -1, 0L, 0L);
+            } else if (param[1].equals("schedule") && param.length == 5) {
+
+                final String[] window = param[2].split("-");
+                if (window.length != 2) {
+                    this.writef("Error: The throttle schedule window must be <hh:mm-hh:mm>!%n");
+                    return;
+                } // end if
+
+                this.throttle.setSchedule(Throttle.parseMinute(window[0]), Throttle.parseMinute(window[1]),
+                        Throttle.parseRate(param[3]), Throttle.parseRate(param[4]));
+
+            } else if (param.length == 3 && (param[1].equals("up") || param[1].equals("down"))) {
+                this.throttle.setRate(false, param[1].equals("up"), Throttle.parseRate(param[2]));
+            } else if (param.length == 4 && param[1].equals("per") && (param[2].equals("up") || param[2].equals("down"))) {
+                this.throttle.setRate(true, param[2].equals("up"), Throttle.parseRate(param[3]));
+            } else {
+                this.writef("Error: Use 'throttle [per] (up | down) (<rate> | off)' or 'throttle schedule'!%n");
+                return;
+            } // end if
+
+        } catch (IllegalArgumentException ex) {
+            this.writef("Error: %s%n", ex.getMessage());
+            return;
+        } // end try
+
+        this.writef("Transfer throttle (bytes per second, K/M/G suffixes accepted):%n");
+        this.writef("    All uploads:      %s%n", Throttle.formatRate(this.throttle.upload));
+        this.writef("    All downloads:    %s%n", Throttle.formatRate(this.throttle.download));
+        this.writef("    Each upload:      %s%n", Throttle.formatRate(this.throttle.perUpload));
+        this.writef("    Each download:    %s%n", Throttle.formatRate(this.throttle.perDownload));
+
+        if (this.throttle.scheduleStart < 0) {
+            this.writef("    Schedule:         none%n");
+        } else {
+            this.writef("    Schedule:         %02d:%02d-%02d:%02d all uploads %s, all downloads %s%s%n",
+                    this.throttle.scheduleStart / 60, this.throttle.scheduleStart % 60,
+                    this.throttle.scheduleEnd / 60, this.throttle.scheduleEnd % 60,
+                    Throttle.formatRate(this.throttle.scheduleUpload),
+                    Throttle.formatRate(this.throttle.scheduleDownload),
+                    this.throttle.inSchedule() ? " (active now)" : "");
+        } // end if
+
+    }// end commandShellThrottle
+
     private void commandShellUnknown(final String[] param) // use Infocom error for unrecognized command? word?
     {
         this.writef("I don't understand!%n");
@@ -1353,11 +2983,109 @@ public final class DBXShell {
         this.writef("DropBox shell version %s.%n", DBXShell.DBX_VERSION_INFO);
     }// end commandShellReady
 
+    private final List<String> completeLine(final String line) {
+
+        final ArrayList<String> found = new ArrayList<String>();
+
+        final int space = line.lastIndexOf(' ');
+        final String word = line.substring(space + 1);
+
+        if (line.trim().length() == 0 || space < 0) {
+            for (String name : DBXShell.DBX_COMMAND_NAMES) {
+                if (name.startsWith(word)) {
+                    found.add(name);
+                } // end if
+            } // end for
+            return found;
+        } // end if
+
+        if (word.startsWith("-")) {
+            return found; // options are not completed
+        } // end if
+
+        final String command = line.trim().split("\\s+")[0];
+
+        final int slash = word.lastIndexOf('/');
+        final String dirPart = word.substring(0, slash + 1);
+        final String prefix = word.substring(slash + 1).toLowerCase(Locale.ROOT);
+
+        if (Arrays.asList(DBXShell.DBX_LOCAL_COMMANDS).contains(command)) {
+
+            File dir = new File(this.localCurrentWorkDir + "/" + dirPart);
+            if (dirPart.startsWith("/")) {
+                dir = new File(dirPart);
+            } // end if
+
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                        found.add(dirPart + file.getName() + (file.isDirectory() ? "/" : ""));
+                    } // end if
+                } // end for
+            } // end if
+
+        } else if (this.readyFlag) {
+
+            String folder = this.dbxCurrentWorkDir;
+            if (dirPart.equals("/")) {
+                folder = "";
+            } else if (dirPart.length() > 0) {
+                folder = this.dbxGetPathAbsolute(dirPart.substring(0, dirPart.length() - 1));
+            } // end if
+
+            for (Metadata meta : this.completeListing(folder)) {
+                if (meta.getName().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                    found.add(dirPart + meta.getName() + (meta instanceof FolderMetadata ? "/" : ""));
+                } // end if
+            } // end for
+
+        } // end if
+
+        Collections.sort(found);
+
+        return found;
+
+    }// end completeLine
+
+    // A fresh cached listing is used as is; otherwise a refresh is started and
+    // waited on for a short budget, after which any stale listing is used.
+    private final List<Metadata> completeListing(final String folder) {
+
+        final String lower = folder.toLowerCase(Locale.ROOT);
+
+        final List<Metadata> fresh = this.listingCache.get(lower, this.isWatched(lower));
+        if (fresh != null) {
+            return fresh;
+        } // end if
+
+        try {
+            return this.dbxPrefetch(folder, false).get(DBXShell.DBX_COMPLETE_BUDGET, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            final List<Metadata> stale = this.listingCache.peek(lower);
+            return stale == null ? new ArrayList<Metadata>() : stale;
+        } // end try
+
+    }// end completeListing
+
+    private final Runnable crawlProgress(final RemoteCrawler crawler) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                DBXShell.this.writef("    crawled %d entries in %d folders, %d folders pending, %4.0f entries per second%n",
+                        crawler.getEntries(), crawler.getFolders(), crawler.getPending(), crawler.getEntriesPerSecond());
+            }// end run
+        };
+
+    }// end crawlProgress
+
     private final void dbxCreateClient(final String appname, final String access) {
 
         try {
 
-            this.config = DbxRequestConfig.newBuilder("dropbox/" + appname).build();
+            this.config = DbxRequestConfig.newBuilder("dropbox/" + appname)
+                    .withHttpRequestor(DBXShell.requestor(StandardHttpRequestor.INSTANCE)).build();
 
             this.client = new DbxClientV2(config, access);
 
@@ -1375,9 +3103,145 @@ public final class DBXShell {
 
     }// end dbxCreateClient
 
+    private final Future<List<Metadata>> dbxPrefetch(final String folder, final boolean children) {
+
+        final String lower = folder.toLowerCase(Locale.ROOT);
+
+        if (this.prefetcher == null) {
+            this.prefetcher = Executors.newFixedThreadPool(DBXShell.DBX_PREFETCH_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable task) {
+                    final Thread thread = new Thread(task, "dbx-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }// end newThread
+            });
+        } // end if
+
+        final FutureTask<List<Metadata>> task = new FutureTask<List<Metadata>>(new Callable<List<Metadata>>() {
+            @Override
+            public List<Metadata> call() throws Exception {
+
+                try {
+
+                    final List<Metadata> entries = DBXShell.this.dbxListFolder(folder);
+
+                    if (children) {
+                        DBXShell.this.dbxPrefetchChildren(entries);
+                    } // end if
+
+                    return entries;
+
+                } finally {
+                    DBXShell.this.prefetches.remove(lower);
+                } // end try
+
+            }// end call
+        });
+
+        final Future<List<Metadata>> running = this.prefetches.putIfAbsent(lower, task);
+        if (running != null) {
+            return running; // already on its way
+        } // end if
+
+        this.prefetcher.execute(task);
+
+        return task;
+
+    }// end dbxPrefetch
+
+    private final void dbxPrefetchChildren(final List<Metadata> entries) {
+
+        int count = 0;
+
+        for (Metadata meta : entries) {
+            if (meta instanceof FolderMetadata && count++ < DBXShell.DBX_PREFETCH_CHILDREN) {
+                this.dbxPrefetch(meta.getPathDisplay(), false);
+            } // end if
+        } // end for
+
+    }// end dbxPrefetchChildren
+
+    private final Metadata dbxGetMetadata(final String path) throws DbxException {
+
+        final String lower = path.toLowerCase(Locale.ROOT);
+
+        final Metadata meta = this.listingCache.find(lower, this.isWatched(lower));
+        if (meta != ListingCache.UNKNOWN) {
+            return meta;
+        } // end if
+
+        try {
+            return this.client.files().getMetadata(path);
+        } catch (GetMetadataErrorException err) {
+            if (err.errorValue.isPath() && err.errorValue.getPathValue().isNotFound()) {
+                return null;
+            } // end if
+            throw err;
+        } // end try
+
+    }// end dbxGetMetadata
+
+    private final List<Metadata> dbxListFolder(final String folder) throws DbxException {
+
+        final String lower = folder.toLowerCase(Locale.ROOT);
+
+        final List<Metadata> cached = this.listingCache.get(lower, this.isWatched(lower));
+        if (cached != null) {
+            return cached;
+        } // end if
+
+        final long version = this.listingCache.getVersion();
+
+        // a stale listing with a cursor only needs the changes made since
+        final String cursor = this.listingCache.cursorOf(lower);
+
+        if (cursor != null) {
+
+            try {
+
+                final ArrayList<Metadata> changes = new ArrayList<Metadata>();
+
+                ListFolderResult result = this.client.files().listFolderContinue(cursor);
+                changes.addAll(result.getEntries());
+
+                while (result.getHasMore()) {
+                    result = this.client.files().listFolderContinue(result.getCursor());
+                    changes.addAll(result.getEntries());
+                } // end while
+
+                final List<Metadata> current = this.listingCache.revalidate(lower, changes, result.getCursor(),
+                        version);
+                if (current != null) {
+                    return current;
+                } // end if
+
+            } catch (ListFolderContinueErrorException err) {
+                // cursor expired or folder gone; list it afresh below
+            } // end try
+
+        } // end if
+
+        final ArrayList<Metadata> entries = new ArrayList<Metadata>();
+
+        ListFolderResult result = this.client.files().listFolderBuilder(folder).withIncludeDeleted(false)
+                .withRecursive(false).withIncludeMediaInfo(false).start();
+        entries.addAll(result.getEntries());
+
+        while (result.getHasMore()) {
+            result = this.client.files().listFolderContinue(result.getCursor());
+            entries.addAll(result.getEntries());
+        } // end while
+
+        this.listingCache.put(lower, entries, result.getCursor(), version);
+
+        return entries;
+
+    }// end dbxListFolder
+
     private final boolean dbxHasFile(final String path) {
         try {
-            Metadata meta = client.files().getMetadata(path);
+            Metadata meta = this.dbxGetMetadata(path);
             if (meta instanceof FileMetadata) {
                 return true;
             } else {
@@ -1403,7 +3267,7 @@ public final class DBXShell {
 
         try {
             
-            Metadata meta = this.client.files().getMetadata(path); // prefix "/" ??
+            Metadata meta = this.dbxGetMetadata(path); // prefix "/" ??
 
             if (meta instanceof FolderMetadata) {
                 return true;
@@ -1424,7 +3288,7 @@ public final class DBXShell {
     private final boolean dbxHasPath(final String path) {
 
         try {
-            Metadata meta = this.client.files().getMetadata(path); // prefix "/" ??
+            Metadata meta = this.dbxGetMetadata(path); // prefix "/" ??
 
             if (meta instanceof FolderMetadata) {
                 return true;
@@ -1443,96 +3307,286 @@ public final class DBXShell {
 
     }// end dbxHasPath
 
-    private final void downloadFromDropbox(final String fileName) {
-        FileOutputStream fos;
-
-        try {
+    // a small range read into memory, for the windows that head and tail scan
+    private final byte[] dbxReadRange(final String path, final long start, final long length)
+            throws DbxException, IOException {
 
-            DbxDownloader<FileMetadata> download = this.client.files().download("/" + fileName); // use dbxCWD
+        DbxDownloader<FileMetadata> download = this.client.files().downloadBuilder(path).range(start, length).start();
 
-            fos = new FileOutputStream(fileName);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length, DBXShell.DBX_RANGE_WINDOW));
 
-            long startTime = System.currentTimeMillis();
+        try {
+            download.download(out);
+        } finally {
+            download.close();
+        } // end try
 
-            FileMetadata metadata = download.download(fos);
+        this.totalDataGet = out.size() + this.totalDataGet;
 
-            long closeTime = System.currentTimeMillis();
+        return out.toByteArray();
 
-            double bytesTime = (double) metadata.getSize() / (double) (closeTime - startTime);
+    }// end dbxReadRange
 
-            this.writef("Get downloaded file: '%s' total bytes: %d time: %d seconds at %4.3f bytes per second.%n",
-                    metadata.getName(), metadata.getSize(), ((closeTime - startTime) / 1000), bytesTime);
+    // a range of any length streamed straight to the console
+    private final void dbxWriteRange(final String path, final long start, final long length)
+            throws DbxException, IOException {
 
-            fos.close();
+        DbxDownloader<FileMetadata> download = this.client.files().downloadBuilder(path).range(start, length).start();
 
-            this.totalDataGet = metadata.getSize() + this.totalDataGet;
+        final InputStream in = download.getInputStream();
+        final byte[] buffer = new byte[DBXShell.DBX_RANGE_WINDOW];
 
-        } catch (DbxException ex) {
-            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
-        } catch (FileNotFoundException ex) {
-            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
-        } catch (IOException ex) {
-            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
-        } catch (Exception ex) {
-            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                this.writeBytes(buffer, 0, count);
+                this.totalDataGet = count + this.totalDataGet;
+            } // end while
+        } finally {
+            download.close();
         } // end try
 
-    }// end downloadFileFromDropbox
+    }// end dbxWriteRange
 
-    private final void evaluate() {
+    private final void downloadFromDropbox(final String fileName) {
 
-        while (!this.exitFlag) {
+        for (int attempt = 0;; attempt++) {
 
             try {
 
-                this.writef(DBXShell.DBX_INPUT_PROMPT, this.appName, this.getDbxDir());
-
-                final String[] param = this.getLine();
+                this.downloadPart(fileName);
+                return;
 
-                if (param.length == 0 || param[0].length() == 0) // no input, loop for input
-                {
-                    this.writef("%s%n", "Huh? What!");
-                    this.history.remove(this.history.size() - 1);
-                    continue;
+            } catch (NetworkIOException ex) {
+                if (attempt >= DBXShell.DBX_GET_RETRIES) {
+                    this.writef("Error %s : %s, partial file kept, repeat get to resume.%n", ex.getClass().getName(),
+                            ex.getMessage());
+                    return;
                 } // end if
-
-                this.process(param);
-                this.shellCommandCounter++;
-
+                this.writef("Get interrupted (%s), resuming %d of %d.%n", ex.getMessage(), attempt + 1,
+                        DBXShell.DBX_GET_RETRIES);
+                Metrics.count(Metrics.RETRIES, "get");
+            } catch (DbxException ex) {
+                this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+                return;
+            } catch (IOException ex) {
+                if (attempt >= DBXShell.DBX_GET_RETRIES) {
+                    this.writef("Error %s : %s, partial file kept, repeat get to resume.%n", ex.getClass().getName(),
+                            ex.getMessage());
+                    return;
+                } // end if
+                this.writef("Get interrupted (%s), resuming %d of %d.%n", ex.getMessage(), attempt + 1,
+                        DBXShell.DBX_GET_RETRIES);
+                Metrics.count(Metrics.RETRIES, "get");
             } catch (Exception ex) {
-                this.writef("Evaluate error: %s %s%n!", ex.getClass().getName(), ex.getMessage());
-                ex.printStackTrace();
-                this.writef("%n%n");
+                this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+                return;
             } // end try
 
-        } // end while
+            try {
+                Thread.sleep(DBXShell.DBX_GET_RETRY_WAIT * (attempt + 1));
+            } catch (InterruptedException ex) {
+                return;
+            } // end try
 
-    }// end evaluate
+        } // end for
 
-    private final void finalizer() {
-        this.writef("%n%s%n", DBXShell.DBX_CLOSE_MESSAGE);
-        System.out.flush();
-    }// end finalizer
+    }// end downloadFromDropbox
 
-    private final String getDbxDir() {
+    // One attempt at a get. Bytes go to '<file>.part' and every finished 4 MB
+    // block is committed to the sidecar, so a failed attempt resumes with a
+    // range request as long as the remote rev has not changed.
+    private final void downloadPart(final String fileName) throws Exception {
 
-        if (!this.readyFlag) {
-            return ""; // not connected, not at root
-        }//end if
+        final String path = "/" + fileName; // use dbxCWD
+        final PartialDownload part = PartialDownload.open(fileName);
 
-        if (this.dbxCurrentWorkDir.equalsIgnoreCase("")) {
-            return "/";
-        }//end if
+        try {
+            this.downloadPart(fileName, path, part, true);
+        } finally {
+            part.close();
+        } // end try
+
+    }// end downloadPart
+
+    // 'report' prints progress and the result; without it a hash mismatch
+    // throws instead, and the caller counts the bytes
+    private final void downloadPart(final String fileName, final String path, final PartialDownload part,
+            final boolean report) throws Exception {
+
+        DbxDownloader<FileMetadata> download = null;
+
+        if (part.getOffset() > 0L) {
+
+            // check the rev first, a range past the end of a replaced file cannot be served
+            final Metadata remote = this.client.files().getMetadata(path);
+
+            if (remote instanceof FileMetadata && part.getRev().equals(((FileMetadata) remote).getRev())
+                    && part.getOffset() <= ((FileMetadata) remote).getSize()) {
+                try {
+                    download = this.client.files().downloadBuilder(path).range(part.getOffset()).start();
+                } catch (NetworkIOException ex) {
+                    throw ex;
+                } catch (DbxException ex) {
+                    download = null; // replaced between the two calls, start over below
+                } // end try
+            } // end if
+
+            if (download != null && !part.getRev().equals(download.getResult().getRev())) {
+                download.close();
+                download = null;
+            } // end if
+
+            if (download == null && report) {
+                this.writef("Get remote file '%s' changed since partial download, starting over.%n", fileName);
+            } // end if
+
+        } // end if
+
+        final boolean fresh = download == null;
+
+        if (fresh) {
+            download = this.client.files().download(path);
+        } else if (report) {
+            this.writef("Get resuming '%s' at byte %d of %d.%n", fileName, part.getOffset(), part.getSize());
+        } // end if
+
+        TransferMeter meter = null;
+        ContentHasher hasher;
+        FileMetadata metadata;
+
+        // the response stays open until here, so everything that can fail is inside the try
+        try {
+
+            if (fresh) {
+                part.begin(download.getResult().getRev(), download.getResult().getSize());
+            } // end if
+
+            // hash while streaming so verifying costs no second pass over the file
+            hasher = new ContentHasher(
+                    this.throttle.download(new ChannelOutputStream(FileChannel.open(part.getFile().toPath(),
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND))),
+                    part);
+
+            meter = new TransferMeter("get", fileName, report && System.console() != null);
+            meter.setTotal(part.getSize() - part.getOffset());
+
+            final OutputStream fos = new MeteredOutputStream(hasher, meter);
+
+            try {
+                metadata = download.download(fos);
+            } finally {
+                fos.close();
+            } // end try
+
+        } finally {
+            if (meter != null) {
+                meter.finish();
+            } // end if
+            download.close();
+        } // end try
+
+        if (metadata.getContentHash() != null && !metadata.getContentHash().equals(hasher.getHash())) {
+            part.discard();
+            if (!report) {
+                throw new IOException(String.format("content hash mismatch, expected %s got %s",
+                        metadata.getContentHash(), hasher.getHash()));
+            } // end if
+            this.writef("Error content hash mismatch on '%s' : expected %s got %s, removed file.%n",
+                    metadata.getName(), metadata.getContentHash(), hasher.getHash());
+            return;
+        } // end if
+
+        part.complete();
+        this.recordTransfer(meter);
+
+        if (!report) {
+            return;
+        } // end if
+
+        this.writef("Get downloaded file: '%s' total bytes: %d time: %4.3f seconds at %4.3f bytes per second.%n",
+                metadata.getName(), metadata.getSize(), meter.getSeconds(), meter.getAverageRate());
+
+        this.totalDataGet = meter.getBytes() + this.totalDataGet;
+
+    }// end downloadPart
+
+
+    private final void evaluate() {
+
+        while (!this.exitFlag) {
+
+            try {
+
+                this.sessionApplyLocal();
+
+                final String prompt = String.format(DBXShell.DBX_INPUT_PROMPT, this.appName, this.getDbxDir());
+
+                this.writef("%s", prompt);
+
+                final String[] param = this.getLine(prompt);
+
+                if (param.length == 0 || param[0].length() == 0) // no input, loop for input
+                {
+                    this.writef("%s%n", "Huh? What!");
+                    this.history.remove(this.history.size() - 1);
+                    continue;
+                } // end if
+
+                this.process(param);
+                this.shellCommandCounter++;
+
+            } catch (Exception ex) {
+                this.writef("Evaluate error: %s %s%n!", ex.getClass().getName(), ex.getMessage());
+                ex.printStackTrace();
+                this.writef("%n%n");
+            } // end try
+
+        } // end while
+
+    }// end evaluate
+
+    private final void finalizer() {
+
+        if (this.editor != null) {
+            this.editor.close();
+        } // end if
+
+        this.writef("%n%s%n", DBXShell.DBX_CLOSE_MESSAGE);
+        System.out.flush();
+    }// end finalizer
+
+    private final String getDbxDir() {
+
+        if (!this.readyFlag) {
+            return ""; // not connected, not at root
+        }//end if
+
+        if (this.dbxCurrentWorkDir.equalsIgnoreCase("")) {
+            return "/";
+        }//end if
 
         return this.dbxCurrentWorkDir;
 
     }// end getDbxDir
 
-    private final String[] getLine() {
+    private final String[] getLine(final String prompt) throws IOException {
+
+        String input;
+        if (this.editor != null) {
+            input = this.editor.readLine(prompt);
+        } else {
+            input = this.scan.nextLine();
+        } // end if
 
-        String input = this.scan.nextLine();
         this.history.add(input);
 
+        return this.splitLine(input);
+
+    }// end getLine
+
+    private final String[] splitLine(final String input) {
+
         String delim = "\\s";
 
         if (input.contains("'")) {
@@ -1549,7 +3603,7 @@ public final class DBXShell {
 
         return param;
 
-    }// end getLine
+    }// end splitLine
 
     private final void getMetadata(final String path) // return Metadata[] if size = 1, size = 0
     {
@@ -1654,8 +3708,22 @@ public final class DBXShell {
         this.writef("%s%n",   DBXShell.DBX_WELCOME_MESSAGE);
         this.writef("%n");
 
+        this.sessionLoad();
+
     }// end initialize
 
+    private final boolean isWatched(final String lower) {
+
+        final RemoteWatcher current = this.watcher;
+
+        if (current == null) {
+            return false;
+        } // end if
+
+        return current.root.equals("") || lower.equals(current.root) || lower.startsWith(current.root + "/");
+
+    }// end isWatched
+
     private final void listFilesAndFilesSubDirectories(final String directoryName) {
 
         final SimpleDateFormat sdf = new SimpleDateFormat("MMM dd yyyy HH:mm:ss:a");
@@ -1680,8 +3748,251 @@ public final class DBXShell {
 
     }// end listFilesAndFilesSubDirectories
 
+    private final void locateUpdate(final String root) {
+
+        PathIndex index = this.pathIndex;
+
+        try {
+
+            long startTime = System.currentTimeMillis();
+
+            if (index != null && index.getRoot().equals(root) && index.getCursor() != null) {
+
+                try {
+
+                    ListFolderResult result = this.client.files().listFolderContinue(index.getCursor());
+
+                    int changes = this.locateApply(index, result);
+
+                    this.writef("Locate index for '%s' updated with %d changes to %d entries.%n",
+                            root.equals("") ? "/" : root, changes, index.size());
+                    return;
+
+                } catch (ListFolderContinueErrorException err) {
+                    if (!err.errorValue.isReset()) {
+                        throw err;
+                    } // end if
+                    this.writef("Locate index cursor was reset by DropBox; rebuilding index.%n");
+                } // end try
+
+            } // end if
+
+            final PathIndex build = new PathIndex(root);
+
+            final RemoteCrawler crawler = new RemoteCrawler(this.client, DBXShell.DBX_CRAWL_THREADS);
+
+            build.setCursor(crawler.crawl(root, new RemoteCrawler.Visitor() {
+                @Override
+                public void visit(final List<Metadata> entries) {
+                    build.apply(entries);
+                }// end visit
+            }, this.crawlProgress(crawler)));
+
+            build.trim();
+
+            index = build;
+
+            this.pathIndex = index;
+
+            long closeTime = System.currentTimeMillis();
+
+            this.writef("Locate index for '%s' built with %d entries in %d milliseconds.%n",
+                    root.equals("") ? "/" : root, index.size(), closeTime - startTime);
+
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end locateUpdate
+
+    private final int locateApply(final PathIndex index, ListFolderResult result) throws DbxException {
+
+        int changes = index.apply(result.getEntries());
+
+        while (result.getHasMore()) {
+            result = this.client.files().listFolderContinue(result.getCursor());
+            changes += index.apply(result.getEntries());
+        } // end while
+
+        index.setCursor(result.getCursor());
+
+        return changes;
+
+    }// end locateApply
+
+    private final PeekCount peekArguments(final String command, final String[] param) {
+
+        if (param.length != 2 && param.length != 4) {
+            this.writef("Error: The command '%s' requires a path parameter and optional -c or -n count!%n", command);
+            return null;
+        } // end if
+
+        if (!this.readyFlag) {
+            this.writef("Not connected to DropBox!%n");
+            return null;
+        } // end if
+
+        if (param.length == 2) {
+            return new PeekCount(false, 10L);
+        } // end if
+
+        if (!param[1].equals("-c") && !param[1].equals("-n")) {
+            this.writef("Error: The command '%s' accepts only -c <bytes> or -n <lines>!%n", command);
+            return null;
+        } // end if
+
+        final long count;
+
+        try {
+            count = Long.parseLong(param[2]);
+        } catch (NumberFormatException ex) {
+            this.writef("Error: The command '%s' requires a numeric count!%n", command);
+            return null;
+        } // end try
+
+        if (count < 0L) {
+            this.writef("Error: The command '%s' requires a count >= 0!%n", command);
+            return null;
+        } // end if
+
+        return new PeekCount(param[1].equals("-c"), count);
+
+    }// end peekArguments
+
+    private final void metricsStop() {
+
+        if (this.metricsServer != null) {
+            this.metricsServer.stop(0);
+            this.metricsServer = null;
+        } // end if
+
+        if (this.metricsWriter != null) {
+            this.metricsWriter.shutdownNow();
+            this.metricsWriter = null;
+            this.metricsWrite(this.metricsFile); // final values for the collector
+        } // end if
+
+    }// end metricsStop
+
+    private final String metricsText() {
+
+        final StringBuilder text = new StringBuilder(4096);
+
+        Metrics.render(text);
+
+        final long hits = this.listingCache.getHits();
+        final long misses = this.listingCache.getMisses();
+
+        Metrics.sample(text, "dbxshell_listing_cache_hits_total", "counter", "Listing cache lookups answered from memory.",
+                hits);
+        Metrics.sample(text, "dbxshell_listing_cache_misses_total", "counter", "Listing cache lookups that missed.",
+                misses);
+        Metrics.sample(text, "dbxshell_listing_cache_hit_ratio", "gauge", "Share of listing cache lookups that hit.",
+                hits + misses == 0L ? 0.0 : (double) hits / (hits + misses));
+        Metrics.sample(text, "dbxshell_listing_cache_bytes", "gauge", "Estimated bytes held by cached listings.",
+                this.listingCache.getBytes());
+        Metrics.sample(text, "dbxshell_connected", "gauge", "1 while the shell is connected to Dropbox.",
+                this.readyFlag ? 1 : 0);
+
+        return text.toString();
+
+    }// end metricsText
+
+    // textfile collector format: written beside the target and moved over it
+    private final synchronized void metricsWrite(final File file) {
+
+        final File temp = new File(file.getPath() + ".tmp");
+
+        try {
+
+            final OutputStream out = new FileOutputStream(temp);
+
+            try {
+                out.write(this.metricsText().getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+            } // end try
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException ex) {
+            this.writef("%nMetrics write error %s : %s%n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end metricsWrite
+
+    private final void pushStart(final Path root, final String remote, final boolean verbose) throws IOException {
+
+        this.pushStop();
+
+        final LocalPusher started = new LocalPusher(this.client, root, remote, verbose);
+
+        this.pusher = started;
+
+        started.start();
+
+    }// end pushStart
+
+    private final void pushStop() {
+
+        final LocalPusher current = this.pusher;
+
+        if (current == null) {
+            return;
+        } // end if
+
+        this.pusher = null;
+
+        try {
+            // uploads already sent are committed before the pusher ends
+            if (!current.shutdown()) {
+                this.writef("Autopush is still committing its last batch.%n");
+            } // end if
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } // end try
+
+    }// end pushStop
+
+    private final void recordTransfer(final TransferMeter meter) {
+
+        synchronized (this.transfers) {
+
+            this.transfers.add(meter);
+
+            if (this.transfers.size() > DBXShell.DBX_TRANSFER_HISTORY) {
+                this.transfers.remove(0);
+            } // end if
+
+        } // end synchronized
+
+    }// end recordTransfer
+
     private final void process(final String[] param) {
 
+        Metrics.count(Metrics.COMMANDS,
+                DBXShell.DBX_COMMAND_SET.contains(param[0]) ? param[0] : "unknown");
+
+        if (!DBXShell.DBX_FLIGHT) {
+            this.dispatch(param);
+            return;
+        } // end if
+
+        final Object event = Flight.begin(Flight.COMMAND);
+
+        try {
+            this.dispatch(param);
+        } finally {
+            Flight.command(event, param, this.getDbxDir());
+        } // end try
+
+    }// end process
+
+    private final void dispatch(final String[] param) {
+
         switch (param[0]) {
 
             case "access":
@@ -1702,6 +4013,18 @@ public final class DBXShell {
                 this.commandShellBye(param);
                 break;
 
+            case "buffers":
+                this.commandShellBuffers(param);
+                break;
+
+            case "autopush":
+                this.commandLocalAutoPush(param);
+                break;
+
+            case "cat":
+                this.commandRemoteCat(param);
+                break;
+
             case "chdir":
             case "cd":
             case "cdir":
@@ -1712,6 +4035,10 @@ public final class DBXShell {
                 this.commandRemoteClose(param);
                 break;
 
+            case "xcp":
+                this.commandRemoteCrossCopy(param);
+                break;
+
             case "cp":
                 this.commandRemoteCopyFile(param);
                 break;
@@ -1726,6 +4053,10 @@ public final class DBXShell {
                 this.commandRemoteDir(param);
                 break;
 
+            case "du":
+                this.commandRemoteDiskUsage(param);
+                break;
+
             case "find":
                 this.commandRemoteFind(param);
                 break;
@@ -1734,6 +4065,10 @@ public final class DBXShell {
                 this.commandLocalGet(param);
                 break;
 
+            case "head":
+                this.commandRemoteHead(param);
+                break;
+
             case "help":
                 this.commandShellHelp(param);
                 break;
@@ -1746,6 +4081,14 @@ public final class DBXShell {
                 this.commandRemoteInfo(param);
                 break;
 
+            case "locate":
+                this.commandRemoteLocate(param);
+                break;
+
+            case "metrics":
+                this.commandShellMetrics(param);
+                break;
+
             case "lcd":
                 this.commandLocalChangeDir(param);
                 break;
@@ -1831,6 +4174,22 @@ public final class DBXShell {
                 this.commandRemoteSpace(param);
                 break;
 
+            case "throttle":
+                this.commandShellThrottle(param);
+                break;
+
+            case "sync":
+                this.commandRemoteSync(param);
+                break;
+
+            case "tail":
+                this.commandRemoteTail(param);
+                break;
+
+            case "watch":
+                this.commandRemoteWatch(param);
+                break;
+
             case "ver":
             case "version":
                 this.commandShellVersion(param);
@@ -1845,7 +4204,7 @@ public final class DBXShell {
 
         }// end switch
 
-    }// end process
+    }// end dispatch
 
     private final void scriptBegin(final String fileName) {
 
@@ -1893,53 +4252,5991 @@ public final class DBXShell {
 
     }// end scriptClose
 
-    private final void uploadToDropbox(final String fileName) // dropBoxPut
-    {
+    // '@name:/path' names an open session, a bare path the shell connection
+    private final AccountSession sessionOf(final String spec) {
 
-        File inputFile = new File(fileName);
-        FileInputStream fis;
+        if (!spec.startsWith("@")) {
 
-        try {
+            if (!this.readyFlag) {
+                this.writef("Not connected to DropBox!%n");
+                return null;
+            } // end if
 
-            fis = new FileInputStream(inputFile);
+            return new AccountSession("", this.client, this.account);
 
-            long startTime = System.currentTimeMillis();
+        } // end if
 
-            FileMetadata metadata = client.files().uploadBuilder("/" + fileName).uploadAndFinish(fis); // revise with
-            long closeTime = System.currentTimeMillis();
+        final int colon = spec.indexOf(':');
+        final String name = spec.substring(1, colon < 0 ? spec.length() : colon);
+        final AccountSession session = this.sessions.get(name);
 
-            double bytesTime = (double) metadata.getSize() / (double) (closeTime - startTime);
+        if (colon < 0) {
+            this.writef("Error: Use '@%s:<path>' to name a path in a session!%n", name);
+            return null;
+        } // end if
 
-            this.writef("Put uploaded file: '%s' total bytes: %d time: %d seconds at %4.3f bytes per second.%n",
-                    metadata.getName(), metadata.getSize(), ((closeTime - startTime) / 1000), bytesTime);
+        if (session == null) {
+            this.writef("Error: No session named '@%s' is open!%n", name);
+        } // end if
 
-            fis.close();
+        return session;
 
-            this.totalDataPut = metadata.getSize() + this.totalDataPut;
+    }// end sessionOf
 
-        } catch (DbxException ex) {
-            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
-        } catch (FileNotFoundException ex) {
+    private final String pathOf(final String spec) {
+
+        if (!spec.startsWith("@")) {
+            return this.dbxGetPathAbsolute(spec);
+        } // end if
+
+        return AccountSession.pathOf(spec);
+
+    }// end pathOf
+
+    private final void sessionOpen(final String[] param) { // open @name <application-name> <access-token>
+
+        final String name = param[1].substring(1);
+
+        if (param.length != 4 || name.length() == 0 || name.contains(":")) {
+            this.writef("Error: The command 'open @<name>' requires application name and access token!%n");
+            return;
+        } // end if
+
+        if (this.sessions.containsKey(name)) {
+            this.writef("Error: A session named '@%s' is already open!%n", name);
+            return;
+        } // end if
+
+        try {
+
+            final DbxRequestConfig config = DbxRequestConfig.newBuilder("dropbox/" + param[2])
+                    .withHttpRequestor(DBXShell.requestor(StandardHttpRequestor.INSTANCE)).build();
+            final DbxClientV2 client = new DbxClientV2(config, param[3]);
+
+            final AccountSession session = new AccountSession(name, client, client.users().getCurrentAccount());
+            this.sessions.put(name, session);
+
+            this.writef("Connected session '@%s' to '%s' on Dropbox.%n", name,
+                    session.account.getName().getDisplayName());
+
+        } catch (Exception ex) {
             this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
-        } catch (IOException ex) {
+        } // end try
+
+    }// end sessionOpen
+
+    private final void sessionApplyLocal() {
+
+        if (this.sessionLocal || this.session == null || !this.session.isDone()) {
+            return;
+        } // end if
+
+        this.sessionLocal = true;
+
+        try {
+
+            final SessionState state = this.session.get();
+
+            for (int x = 0; x < state.history.size(); x++) {
+                this.history.add(x, DBXShell.redactLine(state.history.get(x))); // files saved before redaction
+            } // end for
+
+            if (state.localDir != null && new File(state.localDir).isDirectory()) {
+                this.localCurrentWorkDir = state.localDir;
+            } // end if
+
+        } catch (Exception ex) {
+            // no saved session, or an unreadable one: start cold
+        } // end try
+
+    }// end sessionApplyLocal
+
+    private final void sessionApplyRemote() {
+
+        if (this.sessionRemote || this.session == null) {
+            return;
+        } // end if
+
+        this.sessionRemote = true;
+
+        try {
+
+            final SessionState state = this.session.get();
+
+            if (state.accountId == null || !state.accountId.equals(this.account.getAccountId())) {
+                return;
+            } // end if
+
+            if (state.listings != null) {
+                this.listingCache.adopt(state.listings);
+            } // end if
+
+            if (state.index != null && this.pathIndex == null) {
+                this.pathIndex = state.index;
+            } // end if
+
+            if (state.watchRoot != null) {
+                this.watchStart(state.watchRoot, state.watchCursor, state.watchVerbose);
+            } // end if
+
+            if (!state.remoteDir.equals("") && this.dbxHasFolder(state.remoteDir)) {
+                this.dbxCurrentWorkDir = state.remoteDir;
+            } // end if
+
+            this.writef("Restored session: directory %s, %d cached folders, %d indexed paths%s.%n", this.getDbxDir(),
+                    this.listingCache.size(), this.pathIndex == null ? 0 : this.pathIndex.size(),
+                    state.watchRoot == null ? "" : ", watch resumed");
+
+        } catch (Exception ex) {
+            this.writef("Restore session: %s %s%n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end sessionApplyRemote
+
+    private final void sessionLoad() {
+
+        final File file = new File(System.getProperty("user.home"), DBXShell.DBX_SESSION_FILE);
+
+        if (!file.exists()) {
+            return;
+        } // end if
+
+        this.session = new FutureTask<SessionState>(new Callable<SessionState>() {
+            @Override
+            public SessionState call() throws Exception {
+                return SessionState.load(file);
+            }// end call
+        });
+
+        final Thread thread = new Thread(this.session, "dbx-session");
+        thread.setDaemon(true);
+        thread.start();
+
+    }// end sessionLoad
+
+    // commands whose arguments carry an access token
+    private static boolean isSecretCommand(final String command) {
+        return command.equals("open") || command.equals("access");
+    }// end isSecretCommand
+
+    // a history line with the arguments of a secret command left out
+    private static String redactLine(final String line) {
+
+        final String[] words = line.trim().split("\\s+", 2);
+
+        return words.length > 1 && DBXShell.isSecretCommand(words[0]) ? words[0] : line;
+
+    }// end redactLine
+
+    // an empty file only the owner can read and write, where the file system allows
+    private static void createPrivateFile(final Path path) throws IOException {
+
+        Files.deleteIfExists(path);
+
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            final File file = Files.createFile(path).toFile();
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        } // end try
+
+    }// end createPrivateFile
+
+    private final void sessionSave() {
+
+        if (this.headlessFlag) {
+            return; // a -c run must not replace the interactive session
+        } // end if
+
+        final SessionState state = new SessionState();
+
+        state.localDir = this.localCurrentWorkDir;
+        for (String line : this.history.subList(Math.max(0, this.history.size() - DBXShell.DBX_SESSION_HISTORY),
+                this.history.size())) {
+            state.history.add(DBXShell.redactLine(line)); // no access tokens on disk
+        } // end for
+
+        if (this.readyFlag) {
+
+            state.accountId = this.account.getAccountId();
+            state.remoteDir = this.dbxCurrentWorkDir;
+            state.listings = this.listingCache;
+            state.index = this.pathIndex;
+
+            final RemoteWatcher current = this.watcher;
+            if (current != null) {
+                state.watchRoot = current.root;
+                state.watchCursor = current.cursor;
+                state.watchVerbose = current.verbose;
+            } // end if
+
+        } // end if
+
+        try {
+            state.save(new File(System.getProperty("user.home"), DBXShell.DBX_SESSION_FILE));
+        } catch (Exception ex) {
+            this.writef("Save session: %s %s%n", ex.getClass().getName(), ex.getMessage());
+        } // end try
+
+    }// end sessionSave
+
+    // Pulls a remote folder into a local mirror. The first run crawls the
+    // folder; later runs only page the deltas since the cursor saved in the
+    // mirror, so a run with nothing changed costs one list_folder/continue.
+    // The cursor only moves on when every change was applied, so a failed
+    // file is picked up again by the next run. Pending changes are held in a
+    // RemoteTree rather than as listing entries, so a first crawl of millions
+    // of files stays within the tree's columns.
+    private final void syncPull(final String root, final Path folder) {
+
+        final String lower = root.toLowerCase(Locale.ROOT);
+        final LinkedHashMap<String, String> removed = new LinkedHashMap<String, String>();
+
+        RemoteTree changes = new RemoteTree();
+
+        try {
+
+            SyncMirror mirror = SyncMirror.load(folder.toFile());
+
+            if (mirror != null && !mirror.getRoot().toLowerCase(Locale.ROOT).equals(lower)) {
+                this.writef("Error: Local '%s' mirrors '%s', not '%s'!%n", folder,
+                        mirror.getRoot().equals("") ? "/" : mirror.getRoot(), root.equals("") ? "/" : root);
+                return;
+            } // end if
+
+            if (mirror == null) {
+
+                if (!root.equals("") && !this.dbxHasFolder(root)) {
+                    this.writef("Sync: directory '%s' does not exist!%n", root);
+                    return;
+                } // end if
+
+                Files.createDirectories(folder);
+                mirror = new SyncMirror(folder.toFile(), root);
+
+            } // end if
+
+            String cursor = null;
+
+            if (mirror.getCursor() != null) {
+
+                try {
+
+                    ListFolderResult result = this.client.files().listFolderContinue(mirror.getCursor());
+
+                    while (true) {
+
+                        for (Metadata meta : result.getEntries()) {
+                            DBXShell.syncDelta(lower, meta, changes, removed);
+                        } // end for
+
+                        if (!result.getHasMore()) {
+                            break;
+                        } // end if
+
+                        result = this.client.files().listFolderContinue(result.getCursor());
+
+                    } // end while
+
+                    cursor = result.getCursor();
+
+                } catch (ListFolderContinueErrorException err) {
+                    if (!err.errorValue.isReset()) {
+                        throw err;
+                    } // end if
+                    this.writef("Sync cursor was reset by DropBox; comparing the whole mirror.%n");
+                    removed.clear();
+                } // end try
+
+            } // end if
+
+            if (cursor == null) {
+
+                final RemoteCrawler crawler = new RemoteCrawler(this.client, DBXShell.DBX_CRAWL_THREADS);
+                final RemoteTree seen = new RemoteTree();
+
+                cursor = crawler.crawl(root, new RemoteCrawler.Visitor() {
+                    @Override
+                    public void visit(final List<Metadata> entries) {
+                        synchronized (seen) {
+                            for (Metadata meta : entries) {
+                                DBXShell.syncDelta(lower, meta, seen, removed);
+                            } // end for
+                        } // end synchronized
+                    }// end visit
+                }, this.crawlProgress(crawler));
+
+                // whatever the mirror holds that the crawl did not see is gone
+                mirror.absent(seen, removed);
+                changes = seen;
+
+            } // end if
+
+            if (changes.size() == 0 && removed.isEmpty()) {
+
+                if (!cursor.equals(mirror.getCursor())) {
+                    mirror.setCursor(cursor);
+                    mirror.save();
+                } // end if
+
+                this.writef("Sync pull '%s' to '%s': already up to date.%n", root.equals("") ? "/" : root, folder);
+                return;
+
+            } // end if
+
+            final boolean complete = this.syncApply(mirror, root, folder, changes, removed);
+
+            if (complete) {
+                mirror.setCursor(cursor);
+            } else {
+                this.writef("    Sync cursor kept; repeat 'sync pull' to retry the failed files.%n");
+            } // end if
+
+            mirror.save();
+
+        } catch (DbxException ex) {
             this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
         } catch (Exception ex) {
             this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
         } // end try
 
-    }// end uploadToDropbox
+    }// end syncPull
 
-    private final void writef(final String fmt, Object... args) {
+    // Folds one listing entry into the pending changes: the last entry for a
+    // path wins, and a delete also drops anything queued below it.
+    private final static void syncDelta(final String root, final Metadata meta, final RemoteTree changes,
+            final LinkedHashMap<String, String> removed) {
 
-        final String result = String.format(fmt, args);
+        final String key = meta.getPathLower();
 
-        System.out.print(result);
+        if (key.length() <= root.length() + 1
+                || meta.getPathDisplay().substring(root.length() + 1).startsWith(DBXShell.DBX_SYNC_FILE)) {
+            return; // the root itself, or a name the mirror keeps for its own state
+        } // end if
 
-        if (this.scriptFlag) {
-            this.scriptFile.print(result);
+        if (meta instanceof DeletedMetadata) {
+            changes.remove(key);
+            removed.put(key, meta.getPathDisplay().substring(root.length() + 1));
+            return;
         } // end if
 
-    }// end writef
+        final int node = changes.add(meta.getPathDisplay(), key);
+
+        if (meta instanceof FileMetadata) {
+            final FileMetadata file = (FileMetadata) meta;
+            changes.setFile(node, file.getSize(), file.getClientModified().getTime(), file.getRev(),
+                    file.getContentHash());
+        } else {
+            changes.setFolder(node);
+        } // end if
+
+    }// end syncDelta
+
+    // whether the path or a folder above it is among the removals
+    private final static boolean syncRemoved(final Map<String, String> removed, final String key) {
+
+        if (removed.isEmpty()) {
+            return false;
+        } // end if
+
+        for (int end = key.length(); end > 0; end = key.lastIndexOf('/', end - 1)) {
+            if (removed.containsKey(key.substring(0, end))) {
+                return true;
+            } // end if
+        } // end for
+
+        return false;
+
+    }// end syncRemoved
+
+    // Applies the changes in an order that never loses data: files whose
+    // content reappears under a new path (a rename or move) are stashed aside,
+    // deletes run, folders are made, stashed files are moved into place and
+    // only the rest is downloaded, in parallel.
+    private final boolean syncApply(final SyncMirror mirror, final String root, final Path folder,
+            final RemoteTree changes, final LinkedHashMap<String, String> removed) throws Exception {
+
+        final AtomicInteger downloaded = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final ArrayList<String> errors = new ArrayList<String>();
+        final HashMap<String, Path> renames = new HashMap<String, Path>();
+        final LinkedHashMap<Path, Integer> stashed = new LinkedHashMap<Path, Integer>();
+        final Path stash = folder.resolve(DBXShell.DBX_SYNC_FILE + ".stash");
+
+        final int[] nodes = changes.walk(RemoteTree.ROOT); // parents before children
+        int[] fetch = new int[16];
+        int fetches = 0;
+
+        int moved = 0;
+        int deleted = 0;
+        int unchanged = 0;
+
+        final long startTime = System.nanoTime();
+
+        DBXShell.deleteLocalTree(stash);
+
+        for (String key : removed.keySet()) {
+            for (SyncMirror.Entry was : mirror.entries(key)) {
+
+                final Path local = folder.resolve(was.name);
+
+                if (was.hash != null && Files.isRegularFile(local, LinkOption.NOFOLLOW_LINKS)
+                        && Files.size(local) == was.size) {
+                    renames.put(was.hash, local);
+                } // end if
+
+            } // end for
+        } // end for
+
+        for (int node : nodes) {
+
+            if (changes.isFolder(node)) {
+                continue;
+            } // end if
+
+            final String key = changes.lowerPath(node);
+            final String name = changes.path(node).substring(root.length() + 1);
+            final String hash = changes.getHash(node);
+            final long size = changes.getSize(node);
+            final SyncMirror.Entry have = mirror.get(key);
+            final Path local = folder.resolve(name);
+
+            // below a removed path the local copy is about to be deleted, so it must be
+            // stashed or fetched again however well it matches
+            if (!DBXShell.syncRemoved(removed, key) && Files.isRegularFile(local, LinkOption.NOFOLLOW_LINKS)
+                    && Files.size(local) == size) {
+
+                // an unknown local copy is hashed once, the first time the mirror meets it
+                if (hash != null
+                        && (have != null ? hash.equals(have.hash) : hash.equals(DBXShell.hashLocalFile(local)))) {
+                    mirror.put(key, new SyncMirror.Entry(name, changes.getRev(node), hash, size));
+                    unchanged++;
+                    continue;
+                } // end if
+
+            } // end if
+
+            final Path source = hash == null ? null : renames.remove(hash);
+
+            if (source != null) {
+                final Path aside = stash.resolve(Integer.toString(stashed.size()));
+                Files.createDirectories(stash);
+                Files.move(source, aside);
+                stashed.put(aside, node);
+            } else {
+                if (fetches == fetch.length) {
+                    fetch = Arrays.copyOf(fetch, fetches * 2);
+                } // end if
+                fetch[fetches++] = node;
+            } // end if
+
+        } // end for
+
+        for (Map.Entry<String, String> entry : removed.entrySet()) {
+            final SyncMirror.Entry was = mirror.get(entry.getKey());
+            deleted += DBXShell.deleteLocalTree(folder.resolve(was != null ? was.name : entry.getValue()));
+            mirror.remove(entry.getKey());
+        } // end for
+
+        for (int node : nodes) {
+            if (changes.isFolder(node)) {
+                final String name = changes.path(node).substring(root.length() + 1);
+                Files.createDirectories(folder.resolve(name));
+                mirror.put(changes.lowerPath(node), new SyncMirror.Entry(name, null, null, 0L));
+            } // end if
+        } // end for
+
+        for (Map.Entry<Path, Integer> entry : stashed.entrySet()) {
+
+            final int node = entry.getValue();
+            final String name = changes.path(node).substring(root.length() + 1);
+            final Path local = folder.resolve(name);
+
+            Files.createDirectories(local.getParent());
+            Files.move(entry.getKey(), local, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(local, FileTime.fromMillis(changes.getModified(node)));
+            mirror.put(changes.lowerPath(node), new SyncMirror.Entry(name, changes.getRev(node),
+                    changes.getHash(node), changes.getSize(node)));
+            moved++;
+
+        } // end for
+
+        DBXShell.deleteLocalTree(stash);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(DBXShell.DBX_SYNC_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "dbx-sync");
+                thread.setDaemon(true);
+                return thread;
+            }// end newThread
+        });
+
+        try {
+
+            // each worker takes the next file in turn, the tree is only read from here on
+            final int[] files = fetch;
+            final int total = fetches;
+            final AtomicInteger next = new AtomicInteger();
+            final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+            for (int x = 0; x < DBXShell.DBX_SYNC_THREADS; x++) {
+
+                pending.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        for (int at = next.getAndIncrement(); at < total; at = next.getAndIncrement()) {
+
+                            final int node = files[at];
+                            final String key = changes.lowerPath(node);
+                            final String name = changes.path(node).substring(root.length() + 1);
+                            final Path local = folder.resolve(name);
+
+                            try {
+
+                                Files.createDirectories(local.getParent());
+                                DBXShell.this.syncFetch(name, key, local);
+                                Files.setLastModifiedTime(local, FileTime.fromMillis(changes.getModified(node)));
+                                mirror.put(key, new SyncMirror.Entry(name, changes.getRev(node), changes.getHash(node),
+                                        changes.getSize(node)));
+                                downloaded.incrementAndGet();
+                                bytes.addAndGet(changes.getSize(node));
+
+                            } catch (Exception ex) {
+                                synchronized (errors) {
+                                    errors.add(name + ": " + ex.getMessage());
+                                } // end synchronized
+                            } // end try
+
+                        } // end for
+
+                    }// end run
+                }));
+
+            } // end for
+
+            for (Future<?> task : pending) {
+                task.get();
+            } // end for
+
+        } finally {
+            pool.shutdownNow();
+        } // end try
+
+        this.totalDataGet = bytes.get() + this.totalDataGet;
+
+        final double seconds = (System.nanoTime() - startTime) / 1.0e9;
+
+        for (int x = 0; x < Math.min(errors.size(), 10); x++) {
+            this.writef("    Error: %s%n", errors.get(x));
+        } // end for
+
+        this.writef("Sync pull '%s' to '%s': %d-downloaded %d-moved %d-deleted %d-unchanged %d-failed,%n",
+                root.equals("") ? "/" : root, folder, downloaded.get(), moved, deleted, unchanged, errors.size());
+        this.writef("    %d-bytes in %4.3f seconds at %4.1f-Mb/s.%n", bytes.get(), seconds,
+                seconds > 0.0 ? bytes.get() / seconds / (1024.0 * 1024.0) : 0.0);
+
+        return errors.isEmpty();
+
+    }// end syncApply
+
+    // One mirrored file, resumed from its '.part' file after a network error
+    // the same way 'get' resumes, but without progress lines.
+    private final void syncFetch(final String name, final String path, final Path local) throws Exception {
+
+        for (int attempt = 0;; attempt++) {
+
+            final PartialDownload part = PartialDownload.open(local.toString());
+
+            try {
+
+                this.downloadPart(name, path, part, false);
+                return;
+
+            } catch (NetworkIOException ex) {
+                if (attempt >= DBXShell.DBX_GET_RETRIES) {
+                    throw ex;
+                } // end if
+            } catch (IOException ex) {
+                if (attempt >= DBXShell.DBX_GET_RETRIES) {
+                    throw ex;
+                } // end if
+            } finally {
+                part.close();
+            } // end try
+
+            Metrics.count(Metrics.RETRIES, "sync");
+            Thread.sleep(DBXShell.DBX_GET_RETRY_WAIT * (attempt + 1));
+
+        } // end for
+
+    }// end syncFetch
+
+    private final void uploadToDropbox(final String fileName) // dropBoxPut
+    {
+
+        File inputFile = new File(fileName);
+        InputStream fis = null;
+        FileChannel channel = null;
+        UploadPipeline pipeline = null;
+
+        final TransferMeter meter = new TransferMeter("put", fileName, System.console() != null);
+        meter.setTotal(inputFile.length());
+
+        try {
+
+            FileMetadata metadata;
+
+            if (inputFile.length() >= DBXShell.DBX_MAP_THRESHOLD) {
+                // mapped windows go to the network with no heap chunk buffers
+                channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                pipeline = new UploadPipeline(channel, "put", this.throttle, meter);
+                metadata = DBXShell.uploadSession(this.client, pipeline, "/" + fileName, null);
+            } else if (inputFile.length() <= DBXShell.DBX_UPLOAD_CHUNK) {
+                fis = new MeteredInputStream(this.throttle.upload(new FileInputStream(inputFile)), meter);
+                metadata = client.files().uploadBuilder("/" + fileName).uploadAndFinish(fis); // revise with
+            } else {
+                fis = new MeteredInputStream(this.throttle.upload(new FileInputStream(inputFile)), meter);
+                // disk read-ahead and hashing overlap each session append
+                pipeline = new UploadPipeline(fis, "put");
+                metadata = DBXShell.uploadSession(this.client, pipeline, "/" + fileName, null);
+            } // end if
+
+            this.listingCache.invalidate(metadata.getPathLower());
+
+            meter.finish();
+
+            if (pipeline != null && this.hashMismatch(metadata, pipeline.getHash())) {
+                return;
+            } // end if
+
+            this.writef("Put uploaded file: '%s' total bytes: %d time: %4.3f seconds at %4.3f bytes per second.%n",
+                    metadata.getName(), metadata.getSize(), meter.getSeconds(), meter.getAverageRate());
+
+            this.totalDataPut = metadata.getSize() + this.totalDataPut;
+            this.recordTransfer(meter);
+
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (FileNotFoundException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (IOException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            } // end if
+            try {
+                if (fis != null) {
+                    fis.close();
+                } // end if
+                if (channel != null) {
+                    channel.close();
+                } // end if
+            } catch (IOException ex) {
+                this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+            } // end try
+            meter.finish();
+        } // end try
+
+    }// end uploadToDropbox
+
+    // Uploads a stream of unknown length through an upload session, so memory
+    // stays bounded by the pipeline buffers and nothing is staged on disk.
+    private final void uploadStreamToDropbox(final InputStream input, final String path) {
+
+        final TransferMeter meter = new TransferMeter("put", path, System.console() != null);
+        UploadPipeline pipeline = null;
+
+        try {
+
+            pipeline = new UploadPipeline(new MeteredInputStream(this.throttle.upload(input), meter), "put");
+
+            final FileMetadata metadata = DBXShell.uploadSession(this.client, pipeline, path, null);
+
+            this.listingCache.invalidate(metadata.getPathLower());
+
+            meter.finish();
+
+            if (this.hashMismatch(metadata, pipeline.getHash())) {
+                return;
+            } // end if
+
+            this.writef("Put uploaded stream: '%s' total bytes: %d time: %4.3f seconds at %4.3f bytes per second.%n",
+                    metadata.getPathDisplay(), metadata.getSize(), meter.getSeconds(), meter.getAverageRate());
+
+            this.totalDataPut = metadata.getSize() + this.totalDataPut;
+            this.recordTransfer(meter);
+
+        } catch (DbxException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (IOException ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } catch (Exception ex) {
+            this.writef("Error %s : %s %n", ex.getClass().getName(), ex.getMessage());
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            } // end if
+            meter.finish();
+        } // end try
+
+    }// end uploadStreamToDropbox
+
+    // A stored file whose hash differs from the bytes sent is a failed transfer,
+    // and a -c run ends with a non-zero exit status.
+    private final boolean hashMismatch(final FileMetadata metadata, final String sent) {
+
+        if (metadata.getContentHash() == null || metadata.getContentHash().equals(sent)) {
+            return false;
+        } // end if
+
+        this.writef("Error content hash mismatch on '%s' : sent %s stored %s!%n", metadata.getPathDisplay(), sent,
+                metadata.getContentHash());
+
+        this.corruptFlag = true;
+
+        return true;
+
+    }// end hashMismatch
+
+    // Sends the chunks of a pipeline as one upload session. When 'expected' is
+    // given, the content hash of what was read must match it before the commit.
+    private final static FileMetadata uploadSession(final DbxClientV2 client, final UploadPipeline pipeline,
+            final String path, final String expected) throws Exception {
+
+        final UploadSessionCursor cursor = DBXShell.uploadSessionSend(client, pipeline, path, expected);
+
+        return client.files().uploadSessionFinish(cursor, new CommitInfo(path))
+                .uploadAndFinish(pipeline.streamOf(null), 0L);
+
+    }// end uploadSession
+
+    // the upload session without its commit, for callers that commit in batches
+    private final static UploadSessionCursor uploadSessionSend(final DbxClientV2 client,
+            final UploadPipeline pipeline, final String path, final String expected) throws Exception {
+
+        ByteBuffer chunk = pipeline.next();
+
+        final String session = client.files().uploadSessionStart()
+                .uploadAndFinish(pipeline.streamOf(chunk), UploadPipeline.sizeOf(chunk)).getSessionId();
+
+        long offset = 0L;
+
+        while (chunk != null) {
+
+            offset += chunk.limit();
+            pipeline.release(chunk);
+            chunk = pipeline.next();
+
+            if (chunk != null) {
+                client.files().uploadSessionAppendV2(new UploadSessionCursor(session, offset))
+                        .uploadAndFinish(pipeline.streamOf(chunk), chunk.limit());
+            } // end if
+
+        } // end while
+
+        if (expected != null && !expected.equals(pipeline.getHash())) {
+            throw new IOException("content hash mismatch reading " + path);
+        } // end if
+
+        return new UploadSessionCursor(session, offset);
+
+    }// end uploadSessionSend
+
+    // every Dropbox request goes through here, so one wrapper counts them all
+    // for the metrics and another times them for JFR
+    private final static HttpRequestor requestor(final HttpRequestor base) {
+
+        final HttpRequestor counted = Metrics.wrap(base);
+
+        if (!DBXShell.DBX_FLIGHT) {
+            return counted;
+        } // end if
+
+        return Flight.wrap(counted);
+
+    }// end requestor
+
+    // the API endpoint of a request URL, e.g. '/2/files/list_folder'
+    private final static String endpointOf(final String url) {
+
+        final int host = url.indexOf("://");
+        final int slash = host < 0 ? -1 : url.indexOf('/', host + 3);
+
+        return slash < 0 ? url : url.substring(slash);
+
+    }// end endpointOf
+
+    private final static boolean hasFlightRecorder() {
+
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        } // end try
+
+    }// end hasFlightRecorder
+
+    // Dropbox content hash of a local file.
+    private final static String hashLocalFile(final Path file) throws IOException, NoSuchAlgorithmException {
+
+        final ContentHasher hasher = new ContentHasher(null, null);
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        ByteBuffer buffer = null;
+
+        try {
+
+            // a pooled direct buffer, so hashing many files allocates nothing
+            buffer = BufferArena.SHARED.lease(DBXShell.DBX_WRITE_BUFFER);
+
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
+            } // end while
+
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted waiting for a hash buffer");
+        } catch (OutOfMemoryError ex) {
+            throw new IOException("no direct memory for a hash buffer: " + ex.getMessage(), ex);
+        } finally {
+            if (buffer != null) {
+                BufferArena.SHARED.release(buffer);
+            } // end if
+            channel.close();
+        } // end try
+
+        return hasher.getHash();
+
+    }// end hashLocalFile
+
+    // Removes a file, link or whole directory if it exists and returns the
+    // number of files removed; links are removed, never followed.
+    private final static int deleteLocalTree(final Path path) throws IOException {
+
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return 0;
+        } // end if
+
+        final AtomicInteger count = new AtomicInteger();
+
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                count.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }// end visitFile
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                } // end if
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }// end postVisitDirectory
+
+        });
+
+        return count.get();
+
+    }// end deleteLocalTree
+
+    // fill the buffer unless the channel ends first; false once it has ended
+    private final static boolean readChunk(final ReadableByteChannel in, final ByteBuffer chunk) throws IOException {
+
+        while (chunk.hasRemaining()) {
+
+            if (in.read(chunk) < 0) {
+                return false;
+            } // end if
+
+        } // end while
+
+        return true;
+
+    }// end readChunk
+
+    private final void watchStart(final String root, final String resume, final boolean verbose)
+            throws DbxException {
+
+        this.watchStop();
+
+        final DbxRequestConfig pollConfig = this.config.copy()
+                .withHttpRequestor(DBXShell.requestor(new StandardHttpRequestor(StandardHttpRequestor.Config.builder()
+                        .withReadTimeout(DBXShell.DBX_WATCH_TIMEOUT * 2L, TimeUnit.SECONDS).build())))
+                .build();
+
+        final DbxClientV2 pollClient = new DbxClientV2(pollConfig, this.access);
+
+        String cursor = resume;
+        if (cursor == null) {
+            cursor = this.client.files().listFolderGetLatestCursorBuilder(root).withRecursive(true)
+                    .withIncludeDeleted(true).withIncludeMediaInfo(false).start().getCursor();
+            this.listingCache.clear(); // nothing cached so far was kept current by a watch
+        } // end if
+
+        final RemoteWatcher started = new RemoteWatcher(pollClient, root.toLowerCase(Locale.ROOT), cursor, verbose);
+
+        this.watcher = started;
+
+        if (resume != null) {
+
+            // catch up with everything since the saved cursor before trusting the cache
+            try {
+                started.fetch();
+            } catch (ListFolderContinueErrorException err) {
+                if (!err.errorValue.isReset()) {
+                    throw err;
+                } // end if
+                started.reset();
+            } // end try
+
+        } // end if
+
+        final Thread thread = new Thread(started, "dbx-watcher");
+        thread.setDaemon(true);
+        thread.start();
+
+    }// end watchStart
+
+    private final void watchStop() {
+
+        final RemoteWatcher current = this.watcher;
+
+        if (current != null) {
+            current.running = false; // the poll thread exits when its long poll returns
+            this.watcher = null;
+            this.listingCache.clear();
+        } // end if
+
+    }// end watchStop
+
+    private final void writeBytes(final byte[] data, final int offset, final int length) {
+
+        System.out.write(data, offset, length);
+
+        if (this.scriptFlag) {
+            this.scriptFile.print(new String(data, offset, length, StandardCharsets.UTF_8));
+        } // end if
+
+    }// end writeBytes
+
+    private final void writef(final String fmt, Object... args) {
+
+        final String result = String.format(fmt, args);
+
+        System.out.print(result);
+
+        if (this.scriptFlag) {
+            this.scriptFile.print(result);
+        } // end if
+
+    }// end writef
+
+    // Minimal terminal line editor: the console is put in raw mode with stty so
+    // that TAB can complete commands and paths and the arrow keys walk history.
+    // Where there is no console or no stty, the shell reads with a Scanner.
+    private static final class LineEditor {
+
+        interface Completer {
+            List<String> complete(String line); // candidates for the last word on the line
+        }// end interface Completer
+
+        private final List<String> history;
+
+        private final Completer completer;
+
+        private final String saved;
+
+        private final Reader in = new InputStreamReader(System.in, StandardCharsets.UTF_8);
+
+        private LineEditor(final List<String> history, final Completer completer, final String saved) {
+            this.history = history;
+            this.completer = completer;
+            this.saved = saved;
+        }// end LineEditor
+
+        static LineEditor open(final List<String> history, final Completer completer) {
+
+            if (System.console() == null) {
+                return null;
+            } // end if
+
+            try {
+
+                final String saved = LineEditor.stty("-g").trim();
+
+                LineEditor.stty("-icanon -echo min 1");
+
+                final LineEditor editor = new LineEditor(history, completer, saved);
+
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        editor.close();
+                    }// end run
+                });
+
+                return editor;
+
+            } catch (Exception ex) {
+                return null;
+            } // end try
+
+        }// end open
+
+        void close() {
+            try {
+                LineEditor.stty(this.saved);
+            } catch (Exception ex) {
+                // terminal already gone
+            } // end try
+        }// end close
+
+        String readLine(final String prompt) throws IOException {
+
+            final StringBuilder line = new StringBuilder();
+
+            int recall = this.history.size();
+
+            while (true) {
+
+                final int c = this.in.read();
+
+                if (c == -1 || (c == 4 && line.length() == 0)) { // end of input or ctrl-D
+                    System.out.println();
+                    return "bye";
+                } else if (c == '\n' || c == '\r') {
+                    System.out.println();
+                    return line.toString();
+                } else if (c == 127 || c == 8) {
+                    if (line.length() > 0) {
+                        line.setLength(line.length() - 1);
+                        System.out.print("\b \b");
+                    } // end if
+                } else if (c == 21) { // ctrl-U
+                    line.setLength(0);
+                    this.redraw(prompt, line);
+                } else if (c == '\t') {
+                    this.complete(prompt, line);
+                } else if (c == 27) {
+
+                    if (this.in.read() == '[') {
+
+                        int key = this.in.read();
+                        while (key >= '0' && key <= '9' || key == ';') {
+                            key = this.in.read(); // skip parameters of keys like delete or page up
+                        } // end while
+
+                        if (key == 'A' && recall > 0) {
+                            recall--;
+                        } else if (key == 'B' && recall < this.history.size()) {
+                            recall++;
+                        } else {
+                            continue; // other keys are not supported
+                        } // end if
+
+                        line.setLength(0);
+                        if (recall < this.history.size()) {
+                            line.append(this.history.get(recall));
+                        } // end if
+                        this.redraw(prompt, line);
+
+                    } // end if
+
+                } else if (c >= ' ') {
+                    line.append((char) c);
+                    System.out.print((char) c);
+                } // end if
+
+                System.out.flush();
+
+            } // end while
+
+        }// end readLine
+
+        private void complete(final String prompt, final StringBuilder line) {
+
+            final List<String> found = this.completer.complete(line.toString());
+
+            if (found.isEmpty()) {
+                return;
+            } // end if
+
+            final int start = line.lastIndexOf(" ") + 1;
+            final String word = line.substring(start);
+
+            // extend the word to the longest prefix shared by every candidate
+            String common = found.get(0);
+            for (String candidate : found) {
+                int x = 0;
+                while (x < common.length() && x < candidate.length()
+                        && Character.toLowerCase(common.charAt(x)) == Character.toLowerCase(candidate.charAt(x))) {
+                    x++;
+                } // end while
+                common = common.substring(0, x);
+            } // end for
+
+            if (found.size() == 1 && !common.endsWith("/")) {
+                common = common + " ";
+            } // end if
+
+            if (common.length() > word.length()) {
+                line.setLength(start);
+                line.append(common);
+                this.redraw(prompt, line);
+                return;
+            } // end if
+
+            System.out.println();
+            for (String candidate : found) {
+                final int slash = candidate.lastIndexOf('/', candidate.length() - 2);
+                System.out.print(candidate.substring(slash + 1) + "  ");
+            } // end for
+            System.out.println();
+            this.redraw(prompt, line);
+
+        }// end complete
+
+        private void redraw(final String prompt, final StringBuilder line) {
+            System.out.print("\r" + prompt + line + "\u001b[K");
+        }// end redraw
+
+        private static String stty(final String args) throws IOException, InterruptedException {
+
+            final Process process = new ProcessBuilder("sh", "-c", "stty " + args + " < /dev/tty").start();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final InputStream result = process.getInputStream();
+            final byte[] buffer = new byte[256];
+            int count;
+            while ((count = result.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            } // end while
+
+            if (process.waitFor() != 0) {
+                throw new IOException("stty " + args + " failed");
+            } // end if
+
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+        }// end stty
+
+    }// end class LineEditor
+
+    // Computes the Dropbox content_hash of the bytes written through it: the
+    // SHA-256 of the concatenated SHA-256 digests of each 4 MB block.
+    private static final class ContentHasher extends FilterOutputStream {
+
+        private final MessageDigest overall;
+
+        private final MessageDigest block;
+
+        private int blockBytes = 0;
+
+        private String hash = null;
+
+        private final PartialDownload part;
+
+        ContentHasher(final OutputStream out, final PartialDownload part) throws NoSuchAlgorithmException {
+            super(out);
+            this.overall = MessageDigest.getInstance("SHA-256");
+            this.block = MessageDigest.getInstance("SHA-256");
+            this.part = part;
+
+            if (part != null) {
+                for (byte[] digest : part.getBlocks()) {
+                    this.overall.update(digest);
+                } // end for
+            } // end if
+
+        }// end ContentHasher
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.update(new byte[] { (byte) b }, 0, 1);
+        }// end write
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+            this.out.write(buffer, offset, length);
+            this.update(buffer, offset, length);
+        }// end write
+
+        void update(final byte[] buffer, int offset, int length) throws IOException {
+
+            while (length > 0) {
+
+                final int count = Math.min(length, DBXShell.DBX_HASH_BLOCK - this.blockBytes);
+
+                this.block.update(buffer, offset, count);
+                this.blockBytes += count;
+                offset += count;
+                length -= count;
+
+                if (this.blockBytes == DBXShell.DBX_HASH_BLOCK) {
+                    this.endBlock();
+                } // end if
+
+            } // end while
+
+        }// end update
+
+        // hashes the remaining bytes of 'data' in place, without a heap copy
+        // for direct and mapped buffers; the buffer position is not moved
+        void update(final ByteBuffer data) throws IOException {
+
+            final ByteBuffer view = data.duplicate();
+
+            while (view.hasRemaining()) {
+
+                final int count = Math.min(view.remaining(), DBXShell.DBX_HASH_BLOCK - this.blockBytes);
+                final int limit = view.limit();
+
+                view.limit(view.position() + count);
+                this.block.update(view);
+                view.limit(limit);
+                this.blockBytes += count;
+
+                if (this.blockBytes == DBXShell.DBX_HASH_BLOCK) {
+                    this.endBlock();
+                } // end if
+
+            } // end while
+
+        }// end update
+
+        private void endBlock() throws IOException {
+
+            final byte[] digest = this.block.digest();
+            this.overall.update(digest);
+            this.blockBytes = 0;
+
+            if (this.part != null) {
+                this.out.flush();
+                this.part.commit(digest);
+            } // end if
+
+        }// end endBlock
+
+        String getHash() {
+
+            if (this.hash == null) {
+
+                if (this.blockBytes > 0) {
+                    this.overall.update(this.block.digest());
+                    this.blockBytes = 0;
+                } // end if
+
+                final StringBuilder hex = new StringBuilder();
+
+                for (byte b : this.overall.digest()) {
+                    hex.append(String.format("%02x", b & 0xff));
+                } // end for
+
+                this.hash = hex.toString();
+
+            } // end if
+
+            return this.hash;
+
+        }// end getHash
+
+    }// end class ContentHasher
+
+    // Three stages joined by bounded queues: a reader thread fills chunk
+    // buffers leased from the arena, a second thread feeds them to the content
+    // hash, and the caller sends them. Disk, hashing and network then work at
+    // the same time on different chunks; the free queue holds tickets so no
+    // more than DBX_UPLOAD_BUFFERS chunks are ahead of the sender. Large files
+    // are mapped instead, one window per chunk, and lease nothing.
+    private static final class UploadPipeline {
+
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private static final ByteBuffer TICKET = ByteBuffer.allocate(0);
+
+        private final boolean mapped;
+
+        private final Throttle throttle;
+
+        private final TransferMeter meter;
+
+        private final ArrayBlockingQueue<ByteBuffer> free;
+
+        private final ArrayBlockingQueue<ByteBuffer> read;
+
+        private final ArrayBlockingQueue<ByteBuffer> hashed;
+
+        private final ContentHasher hasher;
+
+        private final Thread reader;
+
+        private final Thread digester;
+
+        private volatile ByteBuffer sending = null;
+
+        private volatile Exception failure = null;
+
+        private volatile boolean complete = false; // the reading stage saw the end of the data
+
+        UploadPipeline(final InputStream in, final String name) throws NoSuchAlgorithmException {
+
+            this.mapped = false;
+            this.throttle = null;
+            this.meter = null;
+            this.free = UploadPipeline.tickets();
+            this.read = new ArrayBlockingQueue<ByteBuffer>(DBXShell.DBX_UPLOAD_BUFFERS + 1);
+            this.hashed = new ArrayBlockingQueue<ByteBuffer>(DBXShell.DBX_UPLOAD_BUFFERS + 1);
+            this.hasher = new ContentHasher(null, null);
+
+            this.reader = UploadPipeline.stage("dbx-" + name + "-read", new Runnable() {
+                @Override
+                public void run() {
+                    UploadPipeline.this.read(Channels.newChannel(in));
+                }// end run
+            });
+
+            this.digester = UploadPipeline.stage("dbx-" + name + "-hash", new Runnable() {
+                @Override
+                public void run() {
+                    UploadPipeline.this.hash();
+                }// end run
+            });
+
+        }// end UploadPipeline
+
+        // the throttle and meter apply where mapped chunks are sent, as no stream reads them
+        UploadPipeline(final FileChannel channel, final String name, final Throttle throttle,
+                final TransferMeter meter) throws NoSuchAlgorithmException {
+
+            this.mapped = true;
+            this.throttle = throttle;
+            this.meter = meter;
+            this.free = UploadPipeline.tickets();
+            this.read = new ArrayBlockingQueue<ByteBuffer>(DBXShell.DBX_UPLOAD_BUFFERS + 1);
+            this.hashed = new ArrayBlockingQueue<ByteBuffer>(DBXShell.DBX_UPLOAD_BUFFERS + 1);
+            this.hasher = new ContentHasher(null, null);
+
+            this.reader = UploadPipeline.stage("dbx-" + name + "-map", new Runnable() {
+                @Override
+                public void run() {
+                    UploadPipeline.this.map(channel);
+                }// end run
+            });
+
+            this.digester = UploadPipeline.stage("dbx-" + name + "-hash", new Runnable() {
+                @Override
+                public void run() {
+                    UploadPipeline.this.hash();
+                }// end run
+            });
+
+        }// end UploadPipeline
+
+        private static ArrayBlockingQueue<ByteBuffer> tickets() {
+
+            final ArrayBlockingQueue<ByteBuffer> tickets = new ArrayBlockingQueue<ByteBuffer>(
+                    DBXShell.DBX_UPLOAD_BUFFERS);
+
+            for (int x = 0; x < DBXShell.DBX_UPLOAD_BUFFERS; x++) {
+                tickets.add(UploadPipeline.TICKET);
+            } // end for
+
+            return tickets;
+
+        }// end tickets
+
+        private static Thread stage(final String name, final Runnable work) {
+            final Thread thread = new Thread(work, name);
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }// end stage
+
+        private void read(final ReadableByteChannel in) {
+
+            ByteBuffer chunk = null;
+
+            try {
+
+                while (true) {
+
+                    this.free.take();
+                    chunk = BufferArena.SHARED.lease(DBXShell.DBX_UPLOAD_CHUNK);
+
+                    final boolean more = DBXShell.readChunk(in, chunk);
+                    chunk.flip();
+
+                    if (chunk.limit() == 0) {
+                        break;
+                    } // end if
+
+                    this.read.put(chunk);
+                    chunk = null;
+
+                    if (!more) {
+                        break;
+                    } // end if
+
+                } // end while
+
+                this.complete = true;
+
+            } catch (Throwable ex) {
+                this.fail(ex); // errors too, or a failed lease would end the upload early
+            } finally {
+                if (chunk != null) {
+                    BufferArena.SHARED.release(chunk);
+                } // end if
+                this.read.offer(UploadPipeline.END); // room is kept for it
+            } // end try
+
+        }// end read
+
+        private void map(final FileChannel channel) {
+
+            try {
+
+                final long size = channel.size();
+
+                for (long position = 0L; position < size; position += DBXShell.DBX_UPLOAD_CHUNK) {
+                    this.free.take();
+                    this.read.put(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(DBXShell.DBX_UPLOAD_CHUNK, size - position)));
+                } // end for
+
+                this.complete = true;
+
+            } catch (Throwable ex) {
+                this.fail(ex);
+            } finally {
+                this.read.offer(UploadPipeline.END);
+            } // end try
+
+        }// end map
+
+        private void hash() {
+
+            ByteBuffer chunk = null;
+
+            try {
+
+                while (true) {
+
+                    chunk = this.read.take();
+
+                    if (chunk == UploadPipeline.END) {
+                        chunk = null;
+                        break;
+                    } // end if
+
+                    this.hasher.update(chunk);
+                    this.hashed.put(chunk);
+                    chunk = null;
+
+                } // end while
+
+            } catch (Throwable ex) {
+                this.fail(ex);
+            } finally {
+                if (chunk != null) {
+                    this.release(chunk);
+                } // end if
+                this.hashed.offer(UploadPipeline.END);
+            } // end try
+
+        }// end hash
+
+        private void fail(final Throwable ex) {
+            if (this.failure == null) {
+                this.failure = ex instanceof Exception ? (Exception) ex : new IOException(ex.toString(), ex);
+            } // end if
+        }// end fail
+
+        // the next hashed chunk, or null after the last; a failed stage throws here
+        ByteBuffer next() throws Exception {
+
+            final ByteBuffer chunk = this.hashed.take();
+
+            if (chunk != UploadPipeline.END) {
+                this.sending = chunk;
+                return chunk;
+            } // end if
+
+            if (this.failure != null) {
+                throw this.failure;
+            } // end if
+
+            if (!this.complete) {
+                throw new IOException("upload pipeline stopped before the end of the data");
+            } // end if
+
+            return null;
+
+        }// end next
+
+        void release(final ByteBuffer chunk) {
+
+            if (chunk == this.sending) {
+                this.sending = null;
+            } // end if
+
+            if (!this.mapped) {
+                BufferArena.SHARED.release(chunk);
+            } // end if
+
+            this.free.offer(UploadPipeline.TICKET);
+
+        }// end release
+
+        // valid once next() has returned null
+        String getHash() {
+            return this.hasher.getHash();
+        }// end getHash
+
+        // stops both stages and returns every chunk still leased to the arena
+        void close() {
+
+            this.reader.interrupt();
+            this.digester.interrupt();
+
+            try {
+                this.reader.join(DBXShell.DBX_PIPELINE_JOIN);
+                this.digester.join(DBXShell.DBX_PIPELINE_JOIN);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } // end try
+
+            final ArrayList<ByteBuffer> left = new ArrayList<ByteBuffer>();
+            this.read.drainTo(left);
+            this.hashed.drainTo(left);
+
+            if (this.sending != null) {
+                left.add(this.sending);
+            } // end if
+
+            for (ByteBuffer chunk : left) {
+                if (chunk != UploadPipeline.END) {
+                    this.release(chunk);
+                } // end if
+            } // end for
+
+        }// end close
+
+        InputStream streamOf(final ByteBuffer chunk) {
+
+            if (chunk == null) {
+                return new ByteArrayInputStream(new byte[0]);
+            } // end if
+
+            final InputStream slice = new ByteBufferInputStream(chunk.duplicate());
+
+            return this.meter == null ? slice : new MeteredInputStream(this.throttle.upload(slice), this.meter);
+
+        }// end streamOf
+
+        static long sizeOf(final ByteBuffer chunk) {
+            return chunk == null ? 0L : chunk.limit();
+        }// end sizeOf
+
+    }// end class UploadPipeline
+
+    // Shared pool of direct buffers for transfers, bounded by a total budget.
+    // Sizes are rounded up to a power of two from DBX_ARENA_MIN; a lease that
+    // does not fit first drops idle buffers of other sizes, then waits for a
+    // release. One lease is always granted when nothing is leased, so a budget
+    // smaller than a chunk slows transfers down instead of stopping them.
+    private static final class BufferArena {
+
+        // half the JVM's direct memory, leaving the rest to socket and file I/O
+        static final long LIMIT = BufferArena.directMemory() / 2;
+
+        static final BufferArena SHARED = new BufferArena(Math.min(DBXShell.DBX_ARENA_BUDGET, BufferArena.LIMIT));
+
+        private final TreeMap<Integer, ArrayList<ByteBuffer>> idle = new TreeMap<Integer, ArrayList<ByteBuffer>>();
+
+        private long budget;
+
+        private long allocated = 0L;
+
+        private long leased = 0L;
+
+        private long peak = 0L;
+
+        private long leases = 0L;
+
+        private long created = 0L;
+
+        private long waits = 0L;
+
+        private long waitNanos = 0L;
+
+        BufferArena(final long budget) {
+            this.budget = budget;
+        }// end BufferArena
+
+        // -XX:MaxDirectMemorySize when given, otherwise the heap limit the JVM defaults it to
+        private static long directMemory() {
+
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (arg.startsWith("-XX:MaxDirectMemorySize=")) {
+                    try {
+                        final long size = Throttle.parseRate(arg.substring(arg.indexOf('=') + 1));
+                        if (size > 0L) {
+                            return size;
+                        } // end if
+                    } catch (IllegalArgumentException ex) {
+                        break;
+                    } // end try
+                } // end if
+            } // end for
+
+            return Runtime.getRuntime().maxMemory();
+
+        }// end directMemory
+
+        synchronized ByteBuffer lease(final int size) throws InterruptedException {
+
+            final int capacity = Math.max(DBXShell.DBX_ARENA_MIN, Integer.highestOneBit(size - 1) << 1);
+
+            while (true) {
+
+                final ArrayList<ByteBuffer> list = this.idle.get(capacity);
+
+                if (list != null && !list.isEmpty()) {
+                    return this.grant(list.remove(list.size() - 1));
+                } // end if
+
+                if (this.allocated + capacity <= this.budget || this.leased == 0L) {
+
+                    final ByteBuffer buffer;
+
+                    try {
+                        buffer = ByteBuffer.allocateDirect(capacity);
+                    } catch (OutOfMemoryError ex) {
+                        // the JVM is out of direct memory: retry once idle buffers are let go, else fail the lease
+                        if (this.drop(0)) {
+                            continue;
+                        } // end if
+                        throw ex;
+                    } // end try
+
+                    this.allocated += capacity;
+                    this.created++;
+                    return this.grant(buffer);
+
+                } // end if
+
+                if (this.drop(capacity)) {
+                    continue;
+                } // end if
+
+                this.waits++;
+                final long start = System.nanoTime();
+                this.wait();
+                this.waitNanos += System.nanoTime() - start;
+
+            } // end while
+
+        }// end lease
+
+        private ByteBuffer grant(final ByteBuffer buffer) {
+            buffer.clear();
+            this.leases++;
+            this.leased += buffer.capacity();
+            this.peak = Math.max(this.peak, this.leased);
+            return buffer;
+        }// end grant
+
+        // forget one idle buffer of another size so its memory counts as free
+        private boolean drop(final int keep) {
+
+            for (Map.Entry<Integer, ArrayList<ByteBuffer>> entry : this.idle.entrySet()) {
+
+                if (entry.getKey() != keep && !entry.getValue().isEmpty()) {
+                    entry.getValue().remove(entry.getValue().size() - 1);
+                    this.allocated -= entry.getKey();
+                    return true;
+                } // end if
+
+            } // end for
+
+            return false;
+
+        }// end drop
+
+        synchronized void release(final ByteBuffer buffer) {
+
+            this.leased -= buffer.capacity();
+
+            if (this.allocated > this.budget) {
+                this.allocated -= buffer.capacity(); // over a lowered budget, let it go
+            } else {
+
+                ArrayList<ByteBuffer> list = this.idle.get(buffer.capacity());
+
+                if (list == null) {
+                    list = new ArrayList<ByteBuffer>();
+                    this.idle.put(buffer.capacity(), list);
+                } // end if
+
+                list.add(buffer);
+
+            } // end if
+
+            this.notifyAll();
+
+        }// end release
+
+        // returns the budget set, which is capped at LIMIT
+        synchronized long setBudget(final long budget) {
+
+            this.budget = Math.min(budget, BufferArena.LIMIT);
+
+            while (this.allocated > this.budget && this.drop(0)) {
+                // idle buffers above the new budget are dropped
+            } // end while
+
+            this.notifyAll();
+
+            return this.budget;
+
+        }// end setBudget
+
+        synchronized long[] snapshot() {
+            return new long[] { this.budget, this.allocated, this.leased, this.peak, this.leases, this.created,
+                    this.waits, this.waitNanos / 1000000L };
+        }// end snapshot
+
+    }// end class BufferArena
+
+    // Buffered file output through a direct buffer leased from the arena, so
+    // large writes reach the channel without a native copy of a heap array.
+    private static final class ChannelOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+
+        private ByteBuffer buffer;
+
+        ChannelOutputStream(final FileChannel channel) throws IOException {
+
+            this.channel = channel;
+
+            try {
+                this.buffer = BufferArena.SHARED.lease(DBXShell.DBX_WRITE_BUFFER);
+            } catch (InterruptedException ex) {
+                channel.close();
+                throw new InterruptedIOException("interrupted waiting for a transfer buffer");
+            } catch (OutOfMemoryError ex) {
+                channel.close();
+                throw new IOException("no direct memory for a transfer buffer: " + ex.getMessage(), ex);
+            } // end try
+
+        }// end ChannelOutputStream
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }// end write
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException {
+
+            while (length > 0) {
+
+                if (!this.buffer.hasRemaining()) {
+                    this.drain();
+                } // end if
+
+                final int count = Math.min(length, this.buffer.remaining());
+                this.buffer.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+
+            } // end while
+
+        }// end write
+
+        @Override
+        public void flush() throws IOException {
+            this.drain();
+        }// end flush
+
+        private void drain() throws IOException {
+
+            this.buffer.flip();
+
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            } // end while
+
+            this.buffer.clear();
+
+        }// end drain
+
+        @Override
+        public void close() throws IOException {
+
+            if (this.buffer == null) {
+                return;
+            } // end if
+
+            try {
+                this.drain();
+            } finally {
+                BufferArena.SHARED.release(this.buffer);
+                this.buffer = null;
+                this.channel.close();
+            } // end try
+
+        }// end close
+
+    }// end class ChannelOutputStream
+
+    // Reads a buffer from its position to its limit; mapped and direct buffers
+    // are copied straight into the caller's array with no heap copy between.
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }// end ByteBufferInputStream
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }// end read
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            } // end if
+
+            final int count = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, count);
+
+            return count;
+
+        }// end read
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }// end available
+
+    }// end class ByteBufferInputStream
+
+    // A get in progress: '<file>.part' holds the bytes and '<file>.part.dbx'
+    // holds the rev, the size and the digest of every finished 4 MB block, so
+    // the committed length is always a whole number of blocks.
+    private static final class PartialDownload {
+
+        private final File file;
+
+        private final File target;
+
+        private final File sidecar;
+
+        private String rev = null;
+
+        private long size = 0L;
+
+        private final ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+
+        private DataOutputStream log = null;
+
+        private PartialDownload(final String fileName) {
+            this.target = new File(fileName);
+            this.file = new File(fileName + DBXShell.DBX_PART_SUFFIX);
+            this.sidecar = new File(fileName + DBXShell.DBX_PART_SUFFIX + ".dbx");
+        }// end PartialDownload
+
+        static PartialDownload open(final String fileName) {
+
+            final PartialDownload part = new PartialDownload(fileName);
+
+            if (!part.file.isFile() || !part.sidecar.isFile()) {
+                return part;
+            } // end if
+
+            try {
+
+                final DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(part.sidecar)));
+
+                try {
+
+                    if (in.readInt() != DBXShell.DBX_PART_MAGIC) {
+                        return part;
+                    } // end if
+
+                    part.rev = SessionState.readString(in);
+                    part.size = in.readLong();
+
+                    // only blocks that reached the part file count, and never the whole file
+                    final long limit = Math.min(part.file.length(), part.size - 1) / DBXShell.DBX_HASH_BLOCK;
+
+                    while (part.blocks.size() < limit) {
+                        final byte[] digest = new byte[32];
+                        in.readFully(digest);
+                        part.blocks.add(digest);
+                    } // end while
+
+                } catch (EOFException ex) {
+                    // a torn last digest, keep the blocks read so far
+                } finally {
+                    in.close();
+                } // end try
+
+                if (part.rev == null) {
+                    part.blocks.clear();
+                } // end if
+
+                part.rewrite();
+
+            } catch (IOException ex) {
+                part.rev = null;
+                part.blocks.clear();
+            } // end try
+
+            return part;
+
+        }// end open
+
+        File getFile() {
+            return this.file;
+        }// end getFile
+
+        String getRev() {
+            return this.rev;
+        }// end getRev
+
+        long getSize() {
+            return this.size;
+        }// end getSize
+
+        long getOffset() {
+            return (long) this.blocks.size() * DBXShell.DBX_HASH_BLOCK;
+        }// end getOffset
+
+        List<byte[]> getBlocks() {
+            return this.blocks;
+        }// end getBlocks
+
+        // start over at byte zero for the given remote rev
+        void begin(final String rev, final long size) throws IOException {
+            this.rev = rev;
+            this.size = size;
+            this.blocks.clear();
+            this.rewrite();
+        }// end begin
+
+        void commit(final byte[] digest) throws IOException {
+            this.blocks.add(digest);
+            this.log.write(digest);
+            this.log.flush();
+        }// end commit
+
+        void complete() throws IOException {
+            this.close();
+            Files.move(this.file.toPath(), this.target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            this.sidecar.delete();
+        }// end complete
+
+        void discard() {
+            this.close();
+            this.file.delete();
+            this.sidecar.delete();
+        }// end discard
+
+        // cut the part file back to the committed blocks and reopen the sidecar for appends
+        private void rewrite() throws IOException {
+
+            this.close();
+
+            final RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+
+            try {
+                raf.setLength(this.getOffset());
+            } finally {
+                raf.close();
+            } // end try
+
+            this.log = new DataOutputStream(new FileOutputStream(this.sidecar));
+            this.log.writeInt(DBXShell.DBX_PART_MAGIC);
+            SessionState.writeString(this.log, this.rev);
+            this.log.writeLong(this.size);
+
+            for (byte[] digest : this.blocks) {
+                this.log.write(digest);
+            } // end for
+
+            this.log.flush();
+
+        }// end rewrite
+
+        void close() {
+
+            if (this.log != null) {
+                try {
+                    this.log.close();
+                } catch (IOException ex) {
+                    // nothing more to save
+                } // end try
+                this.log = null;
+            } // end if
+
+        }// end close
+
+    }// end class PartialDownload
+
+    // The state of one 'sync pull' mirror, kept in the mirror folder itself:
+    // the remote root, the cursor of the last complete pull, and for every
+    // synced path its local name, rev, content hash and size. The paths are
+    // held in a RemoteTree under their full remote path, so the local name is
+    // whatever follows the root.
+    private static final class SyncMirror {
+
+        static final class Entry {
+
+            final String name; // below the mirror root, as displayed
+
+            final String rev; // null for a folder
+
+            final String hash;
+
+            final long size;
+
+            Entry(final String name, final String rev, final String hash, final long size) {
+                this.name = name;
+                this.rev = rev;
+                this.hash = hash;
+                this.size = size;
+            }// end Entry
+
+        }// end class Entry
+
+        private final File file;
+
+        private final String root;
+
+        private String cursor = null;
+
+        private final RemoteTree tree = new RemoteTree();
+
+        SyncMirror(final File folder, final String root) {
+            this.file = new File(folder, DBXShell.DBX_SYNC_FILE);
+            this.root = root;
+        }// end SyncMirror
+
+        String getRoot() {
+            return this.root;
+        }// end getRoot
+
+        String getCursor() {
+            return this.cursor;
+        }// end getCursor
+
+        void setCursor(final String cursor) {
+            this.cursor = cursor;
+        }// end setCursor
+
+        synchronized Entry get(final String key) {
+
+            final int node = this.tree.find(key);
+
+            return node >= 0 && this.tree.isListed(node) ? this.entryOf(node) : null;
+
+        }// end get
+
+        synchronized void put(final String key, final Entry entry) {
+
+            final int node = this.tree.add(this.root + "/" + entry.name, key);
+
+            if (entry.rev == null) {
+                this.tree.setFolder(node);
+            } else {
+                this.tree.setFile(node, entry.size, 0L, entry.rev, entry.hash);
+            } // end if
+
+        }// end put
+
+        // the path and everything below it
+        synchronized void remove(final String key) {
+            this.tree.remove(key);
+        }// end remove
+
+        // the path and everything below it, parents first
+        synchronized List<Entry> entries(final String key) {
+
+            final ArrayList<Entry> found = new ArrayList<Entry>();
+            final int node = this.tree.find(key);
+
+            if (node >= 0) {
+                for (int member : this.tree.walk(node)) {
+                    found.add(this.entryOf(member));
+                } // end for
+            } // end if
+
+            return found;
+
+        }// end entries
+
+        // adds to 'removed' every synced path that 'seen' does not list
+        synchronized void absent(final RemoteTree seen, final Map<String, String> removed) {
+            for (int node : this.tree.walk(RemoteTree.ROOT)) {
+
+                final String key = this.tree.lowerPath(node);
+                final int found = seen.find(key);
+
+                if (found < 0 || !seen.isListed(found)) {
+                    removed.put(key, this.entryOf(node).name);
+                } // end if
+
+            } // end for
+        }// end absent
+
+        private Entry entryOf(final int node) {
+
+            final String name = this.tree.path(node).substring(this.root.length() + 1);
+
+            return this.tree.isFolder(node) ? new Entry(name, null, null, 0L)
+                    : new Entry(name, this.tree.getRev(node), this.tree.getHash(node), this.tree.getSize(node));
+
+        }// end entryOf
+
+        // null when the folder is not a mirror yet
+        static SyncMirror load(final File folder) throws IOException {
+
+            final File file = new File(folder, DBXShell.DBX_SYNC_FILE);
+
+            if (!file.isFile()) {
+                return null;
+            } // end if
+
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+            try {
+
+                if (in.readInt() != DBXShell.DBX_SYNC_MAGIC) {
+                    throw new IOException("not a sync mirror file of this shell version");
+                } // end if
+
+                final SyncMirror mirror = new SyncMirror(folder, SessionState.readString(in));
+                mirror.cursor = SessionState.readString(in);
+
+                for (int count = in.readInt(); count > 0; count--) {
+                    final String key = SessionState.readString(in);
+                    mirror.put(key, new Entry(SessionState.readString(in), SessionState.readString(in),
+                            SessionState.readString(in), in.readLong()));
+                } // end for
+
+                return mirror;
+
+            } finally {
+                in.close();
+            } // end try
+
+        }// end load
+
+        synchronized void save() throws IOException {
+
+            final File temp = new File(this.file.getPath() + ".tmp");
+
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+
+            try {
+
+                out.writeInt(DBXShell.DBX_SYNC_MAGIC);
+                SessionState.writeString(out, this.root);
+                SessionState.writeString(out, this.cursor);
+
+                out.writeInt(this.tree.size());
+                for (int node : this.tree.walk(RemoteTree.ROOT)) {
+
+                    final Entry entry = this.entryOf(node);
+
+                    SessionState.writeString(out, this.tree.lowerPath(node));
+                    SessionState.writeString(out, entry.name);
+                    SessionState.writeString(out, entry.rev);
+                    SessionState.writeString(out, entry.hash);
+                    out.writeLong(entry.size);
+
+                } // end for
+
+            } finally {
+                out.close();
+            } // end try
+
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        }// end save
+
+    }// end class SyncMirror
+
+    // What 'head' and 'tail' print: a count of bytes with -c, else of lines.
+    private static final class PeekCount {
+
+        final boolean bytes;
+
+        final long count;
+
+        PeekCount(final boolean bytes, final long count) {
+            this.bytes = bytes;
+            this.count = count;
+        }// end PeekCount
+
+    }// end class PeekCount
+
+    // Another account connection, opened with 'open @name' beside the shell's
+    // own, that 'xcp' can read from or write to.
+    private static final class AccountSession {
+
+        final String name;
+
+        final DbxClientV2 client;
+
+        final FullAccount account;
+
+        AccountSession(final String name, final DbxClientV2 client, final FullAccount account) {
+            this.name = name;
+            this.client = client;
+            this.account = account;
+        }// end AccountSession
+
+        // a path named in another session has no current folder to follow
+        static String pathOf(final String spec) {
+
+            final String path = spec.substring(spec.indexOf(':') + 1);
+
+            return path.startsWith("/") ? path : "/" + path;
+
+        }// end pathOf
+
+    }// end class AccountSession
+
+    // Byte counter and clock for one transfer, fed by the metered streams. It
+    // times with System.nanoTime, and while running on a console it rewrites a
+    // progress line with percent done, current and average rate and ETA.
+    private static final class TransferMeter {
+
+        private final String direction;
+
+        private final String name;
+
+        private final boolean live;
+
+        private final long startNanos = System.nanoTime();
+
+        private final Object flight = DBXShell.DBX_FLIGHT ? Flight.begin(Flight.TRANSFER) : null;
+
+        private volatile long total = -1L;
+
+        private volatile long bytes = 0L;
+
+        private volatile long closeNanos = 0L;
+
+        private long sampleNanos = this.startNanos;
+
+        private long sampleBytes = 0L;
+
+        private final LongAdder counter;
+
+        TransferMeter(final String direction, final String name, final boolean live) {
+            this.direction = direction;
+            this.name = name;
+            this.live = live;
+            this.counter = direction.equals("get") ? Metrics.BYTES_GET
+                    : direction.equals("xcp") ? Metrics.BYTES_COPY : Metrics.BYTES_PUT;
+            Metrics.ACTIVE.increment();
+        }// end TransferMeter
+
+        String getDirection() {
+            return this.direction;
+        }// end getDirection
+
+        String getName() {
+            return this.name;
+        }// end getName
+
+        long getBytes() {
+            return this.bytes;
+        }// end getBytes
+
+        void setTotal(final long total) {
+            this.total = total;
+        }// end setTotal
+
+        double getSeconds() {
+            final long close = this.closeNanos == 0L ? System.nanoTime() : this.closeNanos;
+            return (close - this.startNanos) / 1.0e9;
+        }// end getSeconds
+
+        double getAverageRate() {
+            final double seconds = this.getSeconds();
+            return seconds > 0.0 ? this.bytes / seconds : 0.0;
+        }// end getAverageRate
+
+        synchronized void add(final long count) {
+
+            this.bytes += count;
+            this.counter.add(count);
+
+            if (!this.live) {
+                return;
+            } // end if
+
+            final long now = System.nanoTime();
+
+            if (now - this.sampleNanos >= DBXShell.DBX_PROGRESS_REPORT * 1000000L) {
+                this.print(now);
+            } // end if
+
+        }// end add
+
+        synchronized void finish() {
+
+            if (this.closeNanos != 0L) {
+                return;
+            } // end if
+
+            this.closeNanos = System.nanoTime();
+
+            Metrics.ACTIVE.decrement();
+            Metrics.count(Metrics.TRANSFERS, this.direction);
+
+            if (this.flight != null) {
+                Flight.transfer(this.flight, this.direction, this.name, this.bytes, this.getAverageRate());
+            } // end if
+
+            if (this.live && this.sampleBytes > 0L) {
+                this.print(this.closeNanos);
+                System.out.println();
+            } // end if
+
+        }// end finish
+
+        private void print(final long now) {
+
+            final double current = (this.bytes - this.sampleBytes) * 1.0e9 / (now - this.sampleNanos);
+            final double average = this.bytes * 1.0e9 / (now - this.startNanos);
+
+            final StringBuilder line = new StringBuilder();
+            line.append(String.format("\r    %s '%s': %d-Kb", this.direction, this.name, this.bytes / 1024L));
+
+            if (this.total > 0L) {
+
+                line.append(String.format(" of %d-Kb (%3d%%)", this.total / 1024L, this.bytes * 100L / this.total));
+
+                if (average > 0.0 && this.bytes < this.total) {
+                    line.append(String.format(" ETA %d seconds", (long) ((this.total - this.bytes) / average)));
+                } // end if
+
+            } // end if
+
+            line.append(String.format(" at %4.1f-Kb/s (average %4.1f-Kb/s)\u001b[K", current / 1024.0,
+                    average / 1024.0));
+
+            System.out.print(line);
+            System.out.flush();
+
+            this.sampleNanos = now;
+            this.sampleBytes = this.bytes;
+
+        }// end print
+
+    }// end class TransferMeter
+
+    private static final class MeteredInputStream extends FilterInputStream {
+
+        private final TransferMeter meter;
+
+        MeteredInputStream(final InputStream in, final TransferMeter meter) {
+            super(in);
+            this.meter = meter;
+        }// end MeteredInputStream
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                this.meter.add(1L);
+            } // end if
+            return b;
+        }// end read
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                this.meter.add(count);
+            } // end if
+            return count;
+        }// end read
+
+    }// end class MeteredInputStream
+
+    private static final class MeteredOutputStream extends FilterOutputStream {
+
+        private final TransferMeter meter;
+
+        MeteredOutputStream(final OutputStream out, final TransferMeter meter) {
+            super(out);
+            this.meter = meter;
+        }// end MeteredOutputStream
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.meter.add(1L);
+        }// end write
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+            this.out.write(buffer, offset, length);
+            this.meter.add(length);
+        }// end write
+
+    }// end class MeteredOutputStream
+
+    // Upload and download rate limits. The totals are token buckets shared by
+    // every transfer, swapped to other rates inside an optional daily window;
+    // a per transfer limit gives each transfer its own bucket as well.
+    private static final class Throttle {
+
+        private volatile long upload = 0L;
+
+        private volatile long download = 0L;
+
+        private volatile long perUpload = 0L;
+
+        private volatile long perDownload = 0L;
+
+        private volatile int scheduleStart = -1;
+
+        private volatile int scheduleEnd = -1;
+
+        private volatile long scheduleUpload = 0L;
+
+        private volatile long scheduleDownload = 0L;
+
+        private volatile long checked = 0L;
+
+        private final TokenBucket uploads = new TokenBucket(0L);
+
+        private final TokenBucket downloads = new TokenBucket(0L);
+
+        InputStream upload(final InputStream in) {
+            this.checked = 0L;
+            return new ThrottledInputStream(in, this, this.uploads, new TokenBucket(this.perUpload));
+        }// end upload
+
+        OutputStream download(final OutputStream out) {
+            this.checked = 0L;
+            return new ThrottledOutputStream(out, this, this.downloads, new TokenBucket(this.perDownload));
+        }// end download
+
+        // the per transfer rate for the direction of a shared bucket
+        long eachRate(final TokenBucket shared) {
+            return shared == this.uploads ? this.perUpload : this.perDownload;
+        }// end eachRate
+
+        void setRate(final boolean each, final boolean up, final long rate) {
+
+            if (each && up) {
+                this.perUpload = rate;
+            } else if (each) {
+                this.perDownload = rate;
+            } else if (up) {
+                this.upload = rate;
+            } else {
+                this.download = rate;
+            } // end if
+
+            this.checked = 0L;
+
+        }// end setRate
+
+        void setSchedule(final int start, final int end, final long up, final long down) {
+            this.scheduleUpload = up;
+            this.scheduleDownload = down;
+            this.scheduleEnd = end;
+            this.scheduleStart = start;
+            this.checked = 0L;
+        }// end setSchedule
+
+        boolean inSchedule() {
+
+            final int start = this.scheduleStart;
+            final int end = this.scheduleEnd;
+
+            if (start < 0) {
+                return false;
+            } // end if
+
+            final Calendar now = Calendar.getInstance();
+            final int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+
+            return start <= end ? minute >= start && minute < end : minute >= start || minute < end;
+
+        }// end inSchedule
+
+        // Applies the schedule to the shared buckets at most once a second.
+        void refresh() {
+
+            final long now = System.currentTimeMillis();
+
+            if (now - this.checked < 1000L) {
+                return;
+            } // end if
+
+            this.checked = now;
+
+            final boolean scheduled = this.inSchedule();
+            this.uploads.setRate(scheduled ? this.scheduleUpload : this.upload);
+            this.downloads.setRate(scheduled ? this.scheduleDownload : this.download);
+
+        }// end refresh
+
+        static long parseRate(final String text) {
+
+            if (text.equals("off")) {
+                return 0L;
+            } // end if
+
+            long scale = 1L;
+            String digits = text.toUpperCase(Locale.ROOT);
+
+            if (digits.endsWith("K")) {
+                scale = 1024L;
+            } else if (digits.endsWith("M")) {
+                scale = 1024L * 1024L;
+            } else if (digits.endsWith("G")) {
+                scale = 1024L * 1024L * 1024L;
+            } // end if
+
+            if (scale > 1L) {
+                digits = digits.substring(0, digits.length() - 1);
+            } // end if
+
+            try {
+                final long rate = (long) (Double.parseDouble(digits) * scale);
+                if (rate < 0L) {
+                    throw new NumberFormatException();
+                } // end if
+                return rate;
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("rate '" + text + "' is not a byte count like 512K or 2M!");
+            } // end try
+
+        }// end parseRate
+
+        static int parseMinute(final String text) {
+
+            final String[] part = text.split(":");
+
+            try {
+                final int hour = Integer.parseInt(part[0]);
+                final int minute = part.length > 1 ? Integer.parseInt(part[1]) : 0;
+                if (part.length > 2 || hour < 0 || hour > 24 || minute < 0 || minute > 59) {
+                    throw new NumberFormatException();
+                } // end if
+                return (hour * 60 + minute) % (24 * 60);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("time '" + text + "' is not hh:mm!");
+            } // end try
+
+        }// end parseMinute
+
+        static String formatRate(final long rate) {
+            return rate <= 0L ? "unlimited" : String.format("%d-Kb/s", rate / 1024L);
+        }// end formatRate
+
+    }// end class Throttle
+
+    // Token bucket holding up to one second of its rate. A caller takes its
+    // bytes at once, running into debt, and sleeps until the debt is repaid;
+    // the lock is never held while sleeping.
+    private static final class TokenBucket {
+
+        private volatile long rate;
+
+        private double tokens = 0.0;
+
+        private long last = System.nanoTime();
+
+        TokenBucket(final long rate) {
+            this.rate = rate;
+        }// end TokenBucket
+
+        void setRate(final long rate) {
+            this.rate = rate;
+        }// end setRate
+
+        void acquire(final long count) throws InterruptedIOException {
+
+            long wait;
+
+            synchronized (this) {
+
+                final long current = this.rate;
+                final long now = System.nanoTime();
+
+                if (current <= 0L) {
+                    this.tokens = 0.0;
+                    this.last = now;
+                    return;
+                } // end if
+
+                this.tokens = Math.min(current, this.tokens + (now - this.last) * (current / 1.0e9));
+                this.last = now;
+                this.tokens -= count;
+
+                wait = this.tokens >= 0.0 ? 0L : (long) (-this.tokens * 1.0e9 / current);
+
+            } // end synchronized
+
+            if (wait > 0L) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("transfer interrupted while throttled");
+                } // end try
+            } // end if
+
+        }// end acquire
+
+    }// end class TokenBucket
+
+    private static final class ThrottledInputStream extends FilterInputStream {
+
+        private final Throttle throttle;
+
+        private final TokenBucket shared;
+
+        private final TokenBucket own;
+
+        ThrottledInputStream(final InputStream in, final Throttle throttle, final TokenBucket shared,
+                final TokenBucket own) {
+            super(in);
+            this.throttle = throttle;
+            this.shared = shared;
+            this.own = own;
+        }// end ThrottledInputStream
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                this.take(1);
+            } // end if
+            return b;
+        }// end read
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int count = super.read(buffer, offset, Math.min(length, DBXShell.DBX_THROTTLE_CHUNK));
+            if (count > 0) {
+                this.take(count);
+            } // end if
+            return count;
+        }// end read
+
+        private void take(final int count) throws InterruptedIOException {
+            this.throttle.refresh();
+            this.own.setRate(this.throttle.eachRate(this.shared)); // 'throttle per' applies mid transfer
+            this.shared.acquire(count);
+            this.own.acquire(count);
+        }// end take
+
+    }// end class ThrottledInputStream
+
+    private static final class ThrottledOutputStream extends FilterOutputStream {
+
+        private final Throttle throttle;
+
+        private final TokenBucket shared;
+
+        private final TokenBucket own;
+
+        ThrottledOutputStream(final OutputStream out, final Throttle throttle, final TokenBucket shared,
+                final TokenBucket own) {
+            super(out);
+            this.throttle = throttle;
+            this.shared = shared;
+            this.own = own;
+        }// end ThrottledOutputStream
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.take(1);
+            this.out.write(b);
+        }// end write
+
+        @Override
+        public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+            for (int x = 0; x < length; x += DBXShell.DBX_THROTTLE_CHUNK) {
+                final int count = Math.min(DBXShell.DBX_THROTTLE_CHUNK, length - x);
+                this.take(count);
+                this.out.write(buffer, offset + x, count);
+            } // end for
+        }// end write
+
+        private void take(final int count) throws InterruptedIOException {
+            this.throttle.refresh();
+            this.own.setRate(this.throttle.eachRate(this.shared)); // 'throttle per' applies mid transfer
+            this.shared.acquire(count);
+            this.own.acquire(count);
+        }// end take
+
+    }// end class ThrottledOutputStream
+
+    // Remote folder listings keyed by lower case folder path, each holding its
+    // entries keyed by lower case entry path, in least recently used order under
+    // a byte budget. A listing under a watched root is kept current by the
+    // watcher; any other listing is trusted only for a short time to live.
+    private static final class ListingCache {
+
+        static final Metadata UNKNOWN = new Metadata("?");
+
+        private static final class Listing {
+
+            private final LinkedHashMap<String, Metadata> entries = new LinkedHashMap<String, Metadata>();
+
+            private long fetched = System.currentTimeMillis();
+
+            private long bytes = 0L;
+
+            private String cursor = null;
+
+        }// end class Listing
+
+        private final LinkedHashMap<String, Listing> folders = new LinkedHashMap<String, Listing>(64, 0.75f, true);
+
+        private final long budget;
+
+        private long bytes = 0L;
+
+        private long version = 0L;
+
+        private long hits = 0L;
+
+        private long misses = 0L;
+
+        ListingCache(final long budget) {
+            this.budget = budget;
+        }// end ListingCache
+
+        synchronized long getVersion() {
+            return this.version;
+        }// end getVersion
+
+        synchronized int size() {
+            return this.folders.size();
+        }// end size
+
+        synchronized long getBytes() {
+            return this.bytes;
+        }// end getBytes
+
+        synchronized long getHits() {
+            return this.hits;
+        }// end getHits
+
+        synchronized long getMisses() {
+            return this.misses;
+        }// end getMisses
+
+        synchronized void clear() {
+            this.folders.clear();
+            this.bytes = 0L;
+            this.version++;
+        }// end clear
+
+        synchronized List<Metadata> get(final String folder, final boolean watched) {
+
+            final Listing listing = this.fresh(folder, watched);
+
+            if (listing == null) {
+                this.misses++;
+                return null;
+            } // end if
+
+            this.hits++;
+            return new ArrayList<Metadata>(listing.entries.values());
+
+        }// end get
+
+        synchronized List<Metadata> peek(final String folder) {
+            final Listing listing = this.folders.get(folder);
+            return listing == null ? null : new ArrayList<Metadata>(listing.entries.values());
+        }// end peek
+
+        // Returns the cached entry, null when its folder is cached without it,
+        // or UNKNOWN when its folder has no usable listing.
+        synchronized Metadata find(final String path, final boolean watched) {
+
+            final Listing listing = this.fresh(ListingCache.parentOf(path), watched);
+
+            if (listing == null) {
+                this.misses++;
+                return ListingCache.UNKNOWN;
+            } // end if
+
+            this.hits++;
+            return listing.entries.get(path);
+
+        }// end find
+
+        // A listing fetched while a change arrived may already be stale, so it is
+        // only kept when nothing has been applied or invalidated since the fetch began.
+        synchronized void put(final String folder, final List<Metadata> entries, final String cursor,
+                final long fetched) {
+
+            if (fetched != this.version) {
+                return;
+            } // end if
+
+            final Listing listing = new Listing();
+            for (Metadata meta : entries) {
+                listing.entries.put(meta.getPathLower(), meta);
+                listing.bytes += ListingCache.estimate(meta);
+            } // end for
+            listing.cursor = cursor;
+
+            this.store(folder, listing);
+
+        }// end put
+
+        synchronized String cursorOf(final String folder) {
+            final Listing listing = this.folders.get(folder);
+            return listing == null ? null : listing.cursor;
+        }// end cursorOf
+
+        // Brings a stale listing up to date with the changes read from its own
+        // cursor; gives up (returning null) if anything else touched the cache.
+        synchronized List<Metadata> revalidate(final String folder, final List<Metadata> changes,
+                final String cursor, final long fetched) {
+
+            final Listing listing = this.folders.get(folder);
+
+            if (listing == null || fetched != this.version) {
+                this.remove(folder);
+                return null;
+            } // end if
+
+            for (Metadata meta : changes) {
+                this.applyTo(listing, meta);
+            } // end for
+
+            listing.cursor = cursor;
+            listing.fetched = System.currentTimeMillis();
+
+            return new ArrayList<Metadata>(listing.entries.values());
+
+        }// end revalidate
+
+        // Takes over listings restored from a saved session, oldest first, so the
+        // budget evicts the least recently used of them.
+        synchronized void adopt(final ListingCache saved) {
+
+            for (Map.Entry<String, Listing> entry : saved.folders.entrySet()) {
+                if (!this.folders.containsKey(entry.getKey())) {
+                    this.store(entry.getKey(), entry.getValue());
+                } // end if
+            } // end for
+
+        }// end adopt
+
+        synchronized void write(final DataOutputStream out) throws IOException {
+
+            out.writeInt(this.folders.size());
+
+            for (Map.Entry<String, Listing> entry : this.folders.entrySet()) {
+
+                final Listing listing = entry.getValue();
+
+                SessionState.writeString(out, entry.getKey());
+                SessionState.writeString(out, listing.cursor);
+                out.writeLong(listing.fetched);
+                out.writeInt(listing.entries.size());
+
+                for (Metadata meta : listing.entries.values()) {
+                    SessionState.writeMetadata(out, meta);
+                } // end for
+
+            } // end for
+
+        }// end write
+
+        synchronized void read(final DataInputStream in) throws IOException {
+
+            for (int folders = in.readInt(); folders > 0; folders--) {
+
+                final String folder = SessionState.readString(in);
+
+                final Listing listing = new Listing();
+                listing.cursor = SessionState.readString(in);
+                listing.fetched = in.readLong();
+
+                for (int entries = in.readInt(); entries > 0; entries--) {
+                    final Metadata meta = SessionState.readMetadata(in);
+                    listing.entries.put(meta.getPathLower(), meta);
+                    listing.bytes += ListingCache.estimate(meta);
+                } // end for
+
+                this.store(folder, listing);
+
+            } // end for
+
+        }// end read
+
+        private void store(final String folder, final Listing listing) {
+
+            this.remove(folder);
+            this.folders.put(folder, listing);
+            this.bytes += listing.bytes;
+
+            final Iterator<Map.Entry<String, Listing>> eldest = this.folders.entrySet().iterator();
+            while (this.bytes > this.budget && eldest.hasNext()) {
+                final Map.Entry<String, Listing> entry = eldest.next();
+                if (entry.getValue() != listing) {
+                    this.bytes -= entry.getValue().bytes;
+                    eldest.remove();
+                } // end if
+            } // end while
+
+        }// end store
+
+        synchronized void apply(final List<Metadata> entries) {
+
+            for (Metadata meta : entries) {
+
+                final String path = meta.getPathLower();
+                final Listing listing = this.folders.get(ListingCache.parentOf(path));
+
+                if (listing != null) {
+                    this.applyTo(listing, meta);
+                } // end if
+
+                if (!(meta instanceof FolderMetadata)) {
+                    this.drop(path); // a deleted folder, or a folder replaced by a file
+                } // end if
+
+            } // end for
+
+            this.version++;
+
+        }// end apply
+
+        private void applyTo(final Listing listing, final Metadata meta) {
+
+            final String path = meta.getPathLower();
+
+            final Metadata old = listing.entries.remove(path);
+            if (old != null) {
+                listing.bytes -= ListingCache.estimate(old);
+                this.bytes -= ListingCache.estimate(old);
+            } // end if
+
+            if (!(meta instanceof DeletedMetadata)) {
+                listing.entries.put(path, meta);
+                listing.bytes += ListingCache.estimate(meta);
+                this.bytes += ListingCache.estimate(meta);
+            } // end if
+
+        }// end applyTo
+
+        // Forget what is known about a path the shell itself has just changed.
+        synchronized void invalidate(final String path) {
+            this.remove(ListingCache.parentOf(path));
+            this.drop(path);
+            this.version++;
+        }// end invalidate
+
+        private Listing fresh(final String folder, final boolean watched) {
+
+            final Listing listing = this.folders.get(folder);
+
+            if (listing == null) {
+                return null;
+            } // end if
+
+            if (!watched && System.currentTimeMillis() - listing.fetched > DBXShell.DBX_CACHE_TTL) {
+                return null;
+            } // end if
+
+            return listing;
+
+        }// end fresh
+
+        private void remove(final String folder) {
+            final Listing listing = this.folders.remove(folder);
+            if (listing != null) {
+                this.bytes -= listing.bytes;
+            } // end if
+        }// end remove
+
+        private void drop(final String path) {
+
+            final String prefix = path + "/";
+
+            final Iterator<Map.Entry<String, Listing>> entries = this.folders.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Listing> entry = entries.next();
+                if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+                    this.bytes -= entry.getValue().bytes;
+                    entries.remove();
+                } // end if
+            } // end while
+
+        }// end drop
+
+        // Rough heap cost of one entry: object headers plus its three strings.
+        private static long estimate(final Metadata meta) {
+
+            long size = 96L + 2L * (meta.getName().length() + meta.getPathLower().length()
+                    + meta.getPathDisplay().length());
+
+            if (meta instanceof FileMetadata) {
+                size += 160L;
+            } // end if
+
+            return size;
+
+        }// end estimate
+
+        static String parentOf(final String path) {
+            final int last = path.lastIndexOf('/');
+            return last <= 0 ? "" : path.substring(0, last);
+        }// end parentOf
+
+    }// end class ListingCache
+
+    // Background long poll on a recursive cursor. Each change batch is fetched
+    // with list_folder/continue and applied to the listing cache and path index.
+    private final class RemoteWatcher implements Runnable {
+
+        private final DbxClientV2 pollClient;
+
+        private final String root;
+
+        private final boolean verbose;
+
+        private final String since = new Date().toString();
+
+        private final AtomicLong batches = new AtomicLong();
+
+        private final AtomicLong changes = new AtomicLong();
+
+        private volatile boolean running = true;
+
+        private volatile String cursor;
+
+        RemoteWatcher(final DbxClientV2 pollClient, final String root, final String cursor, final boolean verbose) {
+            this.pollClient = pollClient;
+            this.root = root;
+            this.cursor = cursor;
+            this.verbose = verbose;
+        }// end RemoteWatcher
+
+        @Override
+        public void run() {
+
+            while (this.running) {
+
+                try {
+
+                    final ListFolderLongpollResult poll = this.pollClient.files().listFolderLongpoll(this.cursor,
+                            DBXShell.DBX_WATCH_TIMEOUT);
+
+                    if (poll.getChanges() && this.running) {
+                        this.fetch();
+                    } // end if
+
+                    if (poll.getBackoff() != null) {
+                        Metrics.count(Metrics.RETRIES, "watch_backoff");
+                        Thread.sleep(poll.getBackoff() * 1000L);
+                    } // end if
+
+                } catch (ListFolderLongpollErrorException err) {
+
+                    if (!this.running) {
+                        break;
+                    } // end if
+
+                    if (err.errorValue == ListFolderLongpollError.RESET) {
+                        this.reset();
+                    } else {
+                        this.pause(err);
+                    } // end if
+
+                } catch (ListFolderContinueErrorException err) {
+
+                    if (!this.running) {
+                        break;
+                    } // end if
+
+                    if (err.errorValue.isReset()) {
+                        this.reset();
+                    } else {
+                        this.pause(err);
+                    } // end if
+
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (Exception ex) {
+                    if (!this.running) {
+                        break;
+                    } // end if
+                    this.pause(ex);
+                } // end try
+
+            } // end while
+
+        }// end run
+
+        private void fetch() throws DbxException {
+
+            ListFolderResult result;
+
+            do {
+
+                result = this.pollClient.files().listFolderContinue(this.cursor);
+
+                final List<Metadata> entries = result.getEntries();
+
+                if (!this.running) {
+                    return;
+                } // end if
+
+                DBXShell.this.listingCache.apply(entries);
+
+                final PathIndex index = DBXShell.this.pathIndex;
+                if (index != null) {
+                    final ArrayList<Metadata> covered = new ArrayList<Metadata>(entries.size());
+                    final String prefix = index.getRoot().toLowerCase(Locale.ROOT) + "/";
+                    for (Metadata meta : entries) {
+                        if (index.getRoot().equals("") || meta.getPathLower().startsWith(prefix)) {
+                            covered.add(meta);
+                        } // end if
+                    } // end for
+                    index.apply(covered);
+                } // end if
+
+                if (this.verbose) {
+                    for (Metadata meta : entries) {
+                        DBXShell.this.writef("%n    watch: %s '%s'%n",
+                                meta instanceof DeletedMetadata ? "deleted" : "changed", meta.getPathDisplay());
+                    } // end for
+                } // end if
+
+                this.changes.addAndGet(entries.size());
+                this.cursor = result.getCursor();
+
+            } while (result.getHasMore());
+
+            this.batches.incrementAndGet();
+
+        }// end fetch
+
+        private void reset() {
+
+            DBXShell.this.writef("%nWatch: cursor reset by DropBox; cached listings dropped.%n");
+            DBXShell.this.listingCache.clear();
+
+            try {
+                this.cursor = this.pollClient.files().listFolderGetLatestCursorBuilder(this.root)
+                        .withRecursive(true).withIncludeDeleted(true).withIncludeMediaInfo(false).start()
+                        .getCursor();
+            } catch (Exception ex) {
+                this.pause(ex);
+            } // end try
+
+        }// end reset
+
+        private void pause(final Exception ex) {
+
+            DBXShell.this.writef("%nWatch error %s : %s; retrying.%n", ex.getClass().getName(), ex.getMessage());
+            Metrics.count(Metrics.RETRIES, "watch");
+
+            try {
+                Thread.sleep(DBXShell.DBX_WATCH_RETRY);
+            } catch (InterruptedException ie) {
+                this.running = false;
+            } // end try
+
+        }// end pause
+
+    }// end class RemoteWatcher
+
+    // Pushes local changes under a directory to Dropbox. A WatchService does
+    // not recurse, so every directory is registered; events only mark paths
+    // dirty. Once the tree has been quiet for DBX_PUSH_QUIET, or a burst has
+    // gone on for DBX_PUSH_HOLD, the dirty paths are compared with what was
+    // pushed and sent as batches: moves first, then deletes, new empty
+    // folders, and uploads committed with one upload_session/finish_batch.
+    private final class LocalPusher implements Runnable {
+
+        private final DbxClientV2 pushClient;
+
+        private final Path root;
+
+        private final String remote;
+
+        private final boolean verbose;
+
+        private final String since = new Date().toString();
+
+        private final WatchService service;
+
+        private final HashMap<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+        private final HashSet<Path> registered = new HashSet<Path>(); // the directories in keys
+
+        // size and mtime of every pushed file, size -1 for a folder, by path below root
+        private final TreeMap<String, long[]> pushed = new TreeMap<String, long[]>();
+
+        private final TreeSet<String> dirty = new TreeSet<String>();
+
+        private final AtomicLong batches = new AtomicLong();
+
+        private final AtomicLong uploads = new AtomicLong();
+
+        private final AtomicLong moves = new AtomicLong();
+
+        private final AtomicLong deletes = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private volatile boolean running = true;
+
+        private long firstEvent = 0L;
+
+        private long lastEvent = 0L;
+
+        private Thread thread = null;
+
+        LocalPusher(final DbxClientV2 pushClient, final Path root, final String remote, final boolean verbose)
+                throws IOException {
+            this.pushClient = pushClient;
+            this.root = root;
+            this.remote = remote;
+            this.verbose = verbose;
+            this.service = root.getFileSystem().newWatchService();
+            this.register(root);
+        }// end LocalPusher
+
+        void start() {
+            this.thread = new Thread(this, "dbx-autopush");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }// end start
+
+        // stops watching and waits for a batch in flight, true once the thread is done
+        boolean shutdown() throws InterruptedException {
+            this.stop();
+            this.thread.join(DBXShell.DBX_PUSH_STOP);
+            return !this.thread.isAlive();
+        }// end shutdown
+
+        void stop() {
+
+            this.running = false;
+
+            try {
+                this.service.close(); // wakes the thread out of take()
+            } catch (IOException ex) {
+                // already closed
+            } // end try
+
+        }// end stop
+
+        @Override
+        public void run() {
+
+            try {
+
+                this.baseline();
+                this.mark("");
+
+                while (this.running) {
+
+                    WatchKey key;
+
+                    if (this.dirty.isEmpty()) {
+                        key = this.service.take();
+                    } else {
+
+                        final long due = Math.min(this.lastEvent + DBXShell.DBX_PUSH_QUIET,
+                                this.firstEvent + DBXShell.DBX_PUSH_HOLD);
+                        final long now = System.currentTimeMillis();
+
+                        if (now >= due) {
+                            this.flush();
+                            continue;
+                        } // end if
+
+                        key = this.service.poll(due - now, TimeUnit.MILLISECONDS);
+
+                    } // end if
+
+                    while (key != null) {
+                        this.events(key);
+                        key = this.service.poll(); // drain whatever else is queued
+                    } // end while
+
+                } // end while
+
+            } catch (ClosedWatchServiceException ex) {
+                // stopped
+            } catch (InterruptedException ex) {
+                // stopped
+            } catch (Exception ex) {
+                DBXShell.this.writef("%nAutopush error %s : %s; stopped.%n", ex.getClass().getName(), ex.getMessage());
+            } finally {
+                this.stop();
+            } // end try
+
+        }// end run
+
+        // treat remote files with the local size and mtime as already pushed, so
+        // a restart only sends what changed; remote extras are left alone
+        private void baseline() throws DbxException, InterruptedException {
+
+            final RemoteCrawler crawler = new RemoteCrawler(this.pushClient, DBXShell.DBX_CRAWL_THREADS);
+
+            try {
+
+                crawler.crawl(this.remote, new RemoteCrawler.Visitor() {
+                    @Override
+                    public void visit(final List<Metadata> entries) {
+
+                        for (Metadata meta : entries) {
+
+                            final String rel = meta.getPathDisplay().substring(LocalPusher.this.remote.length() + 1);
+                            final Path local = LocalPusher.this.root.resolve(rel);
+
+                            try {
+
+                                final BasicFileAttributes attrs = Files.readAttributes(local,
+                                        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+                                if (meta instanceof FolderMetadata && attrs.isDirectory()) {
+                                    LocalPusher.this.known(rel, new long[] { -1L, 0L });
+                                } else if (meta instanceof FileMetadata && attrs.isRegularFile()
+                                        && ((FileMetadata) meta).getSize() == attrs.size()
+                                        && ((FileMetadata) meta).getClientModified().getTime() / 1000L == attrs
+                                                .lastModifiedTime().toMillis() / 1000L) {
+                                    LocalPusher.this.known(rel, new long[] { attrs.size(),
+                                            attrs.lastModifiedTime().toMillis() });
+                                } // end if
+
+                            } catch (IOException ex) {
+                                // not here locally, nothing to compare
+                            } // end try
+
+                        } // end for
+
+                    }// end visit
+                }, null);
+
+            } catch (ListFolderErrorException ex) {
+                // no remote folder yet, the first batch makes it
+            } // end try
+
+        }// end baseline
+
+        private void known(final String rel, final long[] value) {
+            synchronized (this.pushed) {
+                this.pushed.put(rel, value);
+            } // end synchronized
+        }// end known
+
+        private void register(final Path start) throws IOException {
+
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+                        throws IOException {
+                    if (LocalPusher.this.registered.add(dir)) {
+                        try {
+                            LocalPusher.this.keys.put(dir.register(LocalPusher.this.service,
+                                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                        } catch (IOException ex) {
+                            LocalPusher.this.registered.remove(dir);
+                            throw ex;
+                        } // end try
+                    } // end if
+                    return FileVisitResult.CONTINUE;
+                }// end preVisitDirectory
+            });
+
+        }// end register
+
+        private void events(final WatchKey key) throws IOException {
+
+            final Path dir = this.keys.get(key);
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    this.mark(""); // events were lost, compare the whole tree
+                    continue;
+                } // end if
+
+                final Path path = dir.resolve((Path) event.context());
+
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    this.register(path);
+                } // end if
+
+                this.mark(this.relative(path));
+
+            } // end for
+
+            if (!key.reset()) {
+                this.registered.remove(this.keys.remove(key));
+            } // end if
+
+        }// end events
+
+        private void mark(final String rel) {
+
+            final long now = System.currentTimeMillis();
+
+            if (this.dirty.isEmpty()) {
+                this.firstEvent = now;
+            } // end if
+
+            this.lastEvent = now;
+            this.dirty.add(rel);
+
+        }// end mark
+
+        private String relative(final Path path) {
+            return this.root.relativize(path).toString().replace(File.separatorChar, '/');
+        }// end relative
+
+        private String remoteOf(final String rel) {
+            return this.remote + "/" + rel;
+        }// end remoteOf
+
+        private boolean isKnown(final String rel) {
+            return this.pushed.containsKey(rel) || !this.pushed.subMap(rel + "/", rel + "0").isEmpty();
+        }// end isKnown
+
+        // the pushed files below a folder, by their path inside it
+        private TreeMap<String, long[]> filesUnder(final TreeMap<String, long[]> map, final String folder) {
+
+            final TreeMap<String, long[]> files = new TreeMap<String, long[]>();
+
+            for (Map.Entry<String, long[]> entry : map.subMap(folder + "/", folder + "0").entrySet()) {
+                if (entry.getValue()[0] >= 0L) {
+                    files.put(entry.getKey().substring(folder.length() + 1), entry.getValue());
+                } // end if
+            } // end for
+
+            return files;
+
+        }// end filesUnder
+
+        // compares one dirty path, and for a folder everything below it, with what was pushed
+        private void survey(final String rel, final TreeMap<String, long[]> sends, final TreeSet<String> gone,
+                final TreeSet<String> folders) throws IOException {
+
+            final Path path = rel.equals("") ? this.root : this.root.resolve(rel);
+
+            BasicFileAttributes attrs = null;
+
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ex) {
+                // gone since the event
+            } // end try
+
+            final long[] was = this.pushed.get(rel);
+
+            if (attrs == null || (was != null && (was[0] < 0L) != attrs.isDirectory())) {
+                if (!rel.equals("") && this.isKnown(rel)) {
+                    gone.add(rel);
+                } // end if
+            } // end if
+
+            if (attrs == null) {
+                return;
+            } // end if
+
+            if (attrs.isRegularFile()) {
+                this.compare(rel, attrs, sends);
+                return;
+            } // end if
+
+            if (!attrs.isDirectory()) {
+                return; // links, devices and the like are not pushed
+            } // end if
+
+            this.register(path);
+
+            final HashMap<String, Boolean> seen = new HashMap<String, Boolean>();
+
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes dirAttrs) {
+                    final String name = LocalPusher.this.relative(dir);
+                    if (!name.equals("")) {
+                        seen.put(name, Boolean.TRUE);
+                        if (!LocalPusher.this.pushed.containsKey(name)) {
+                            folders.add(name);
+                        } // end if
+                    } // end if
+                    return FileVisitResult.CONTINUE;
+                }// end preVisitDirectory
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes fileAttrs) {
+                    final String name = LocalPusher.this.relative(file);
+                    seen.put(name, Boolean.TRUE);
+                    if (fileAttrs.isRegularFile()) {
+                        LocalPusher.this.compare(name, fileAttrs, sends);
+                    } // end if
+                    return FileVisitResult.CONTINUE;
+                }// end visitFile
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }// end visitFileFailed
+
+            });
+
+            final Map<String, long[]> below = rel.equals("") ? this.pushed
+                    : this.pushed.subMap(rel + "/", rel + "0");
+
+            for (String name : below.keySet()) {
+                if (!seen.containsKey(name)) {
+                    gone.add(name);
+                } // end if
+            } // end for
+
+        }// end survey
+
+        private void compare(final String rel, final BasicFileAttributes attrs, final TreeMap<String, long[]> sends) {
+
+            final String name = rel.substring(rel.lastIndexOf('/') + 1);
+
+            if (name.startsWith(DBXShell.DBX_SYNC_FILE) || name.endsWith(DBXShell.DBX_PART_SUFFIX)
+                    || name.endsWith(DBXShell.DBX_PART_SUFFIX + ".dbx")) {
+                return; // the shell's own state and partial downloads
+            } // end if
+
+            final long[] now = new long[] { attrs.size(), attrs.lastModifiedTime().toMillis() };
+            final long[] was = this.pushed.get(rel);
+
+            if (was == null || was[0] != now[0] || was[1] != now[1]) {
+                sends.put(rel, now);
+            } // end if
+
+        }// end compare
+
+        private void flush() throws InterruptedException {
+
+            final TreeMap<String, long[]> sends = new TreeMap<String, long[]>();
+            final TreeSet<String> gone = new TreeSet<String>();
+            final TreeSet<String> folders = new TreeSet<String>();
+
+            final long startTime = System.nanoTime();
+            final long[] before = new long[] { this.uploads.get(), this.moves.get(), this.deletes.get(),
+                    this.failures.get() };
+
+            final ArrayList<String> marked = new ArrayList<String>(this.dirty);
+            this.dirty.clear();
+
+            try {
+
+                for (String rel : marked) {
+                    this.survey(rel, sends, gone, folders);
+                } // end for
+
+                // a folder that went with its parent needs no delete of its own
+                String parent = null;
+                for (Iterator<String> it = gone.iterator(); it.hasNext();) {
+                    final String rel = it.next();
+                    if (parent != null && rel.startsWith(parent + "/")) {
+                        it.remove();
+                    } else {
+                        parent = rel;
+                    } // end if
+                } // end for
+
+                final ArrayList<String[]> relocations = this.matchMoves(sends, gone, folders);
+
+                this.pushMoves(relocations, sends, gone, folders);
+                this.pushDeletes(gone);
+                this.pushFolders(folders, sends);
+                this.pushUploads(sends);
+
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                if (!this.running) {
+                    return; // stopped mid survey, the watch service is closed
+                } // end if
+                // compare the whole tree again once the retry wait is over
+                this.failures.incrementAndGet();
+                DBXShell.this.writef("%nAutopush error %s : %s; retrying.%n", ex.getClass().getName(),
+                        ex.getMessage());
+                Metrics.count(Metrics.RETRIES, "autopush");
+                Thread.sleep(DBXShell.DBX_WATCH_RETRY);
+                this.mark("");
+            } // end try
+
+            this.batches.incrementAndGet();
+
+            if (this.verbose) {
+                DBXShell.this.writef("%n    autopush: %d uploaded %d moved %d deleted %d failed in %4.3f seconds.%n",
+                        this.uploads.get() - before[0], this.moves.get() - before[1],
+                        this.deletes.get() - before[2], this.failures.get() - before[3],
+                        (System.nanoTime() - startTime) / 1.0e9);
+            } // end if
+
+        }// end flush
+
+        // A folder whose pushed files all reappear, same names, sizes and mtimes,
+        // under a new folder was moved; a pushed file whose size and mtime
+        // reappear on a new path was renamed if the content hash agrees too.
+        private ArrayList<String[]> matchMoves(final TreeMap<String, long[]> sends, final TreeSet<String> gone,
+                final TreeSet<String> folders) {
+
+            final ArrayList<String[]> relocations = new ArrayList<String[]>();
+
+            for (Iterator<String> it = gone.iterator(); it.hasNext();) {
+
+                final String from = it.next();
+                final TreeMap<String, long[]> old = this.filesUnder(this.pushed, from);
+
+                if (old.isEmpty()) {
+                    continue;
+                } // end if
+
+                for (String to : folders) {
+
+                    final TreeMap<String, long[]> moved = this.filesUnder(sends, to);
+
+                    if (!this.isKnown(to) && this.same(old, moved)) {
+                        relocations.add(new String[] { from, to });
+                        sends.subMap(to + "/", to + "0").clear();
+                        folders.remove(to);
+                        folders.subSet(to + "/", to + "0").clear();
+                        it.remove();
+                        break;
+                    } // end if
+
+                } // end for
+
+            } // end for
+
+            final HashMap<String, ArrayList<String>> fresh = new HashMap<String, ArrayList<String>>();
+
+            for (Map.Entry<String, long[]> entry : sends.entrySet()) {
+                if (!this.pushed.containsKey(entry.getKey())) {
+                    final String stamp = entry.getValue()[0] + ":" + entry.getValue()[1];
+                    if (!fresh.containsKey(stamp)) {
+                        fresh.put(stamp, new ArrayList<String>(1));
+                    } // end if
+                    fresh.get(stamp).add(entry.getKey());
+                } // end if
+            } // end for
+
+            for (Iterator<String> it = gone.iterator(); it.hasNext();) {
+
+                final String from = it.next();
+                final long[] was = this.pushed.get(from);
+
+                if (was == null || was[0] < 0L || !fresh.containsKey(was[0] + ":" + was[1])) {
+                    continue;
+                } // end if
+
+                // extracted or copied files share sizes and mtimes, only the hash tells them apart
+                final String hash = this.remoteHash(from);
+
+                for (Iterator<String> candidates = fresh.get(was[0] + ":" + was[1]).iterator(); hash != null
+                        && candidates.hasNext();) {
+
+                    final String to = candidates.next();
+
+                    if (hash.equals(this.localHash(to))) {
+                        relocations.add(new String[] { from, to });
+                        sends.remove(to);
+                        candidates.remove();
+                        it.remove();
+                        break;
+                    } // end if
+
+                } // end for
+
+            } // end for
+
+            return relocations;
+
+        }// end matchMoves
+
+        // null when it cannot be had, which makes the file go up again instead
+        private String remoteHash(final String rel) {
+
+            try {
+                final Metadata meta = this.pushClient.files().getMetadata(this.remoteOf(rel));
+                return meta instanceof FileMetadata ? ((FileMetadata) meta).getContentHash() : null;
+            } catch (Exception ex) {
+                return null;
+            } // end try
+
+        }// end remoteHash
+
+        private String localHash(final String rel) {
+
+            try {
+                return DBXShell.hashLocalFile(this.root.resolve(rel));
+            } catch (Exception ex) {
+                return null;
+            } // end try
+
+        }// end localHash
+
+        private boolean same(final TreeMap<String, long[]> left, final TreeMap<String, long[]> right) {
+
+            if (left.size() != right.size()) {
+                return false;
+            } // end if
+
+            for (Map.Entry<String, long[]> entry : left.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), right.get(entry.getKey()))) {
+                    return false;
+                } // end if
+            } // end for
+
+            return true;
+
+        }// end same
+
+        // a failed move falls back to a delete and a fresh upload
+        private void pushMoves(final ArrayList<String[]> relocations, final TreeMap<String, long[]> sends,
+                final TreeSet<String> gone, final TreeSet<String> folders) throws Exception {
+
+            for (int start = 0; start < relocations.size(); start += DBXShell.DBX_PUSH_BATCH) {
+
+                final List<String[]> batch = relocations.subList(start,
+                        Math.min(relocations.size(), start + DBXShell.DBX_PUSH_BATCH));
+                final ArrayList<RelocationPath> paths = new ArrayList<RelocationPath>(batch.size());
+
+                for (String[] move : batch) {
+                    paths.add(new RelocationPath(this.remoteOf(move[0]), this.remoteOf(move[1])));
+                } // end for
+
+                final RelocationBatchV2Launch launch = this.pushClient.files().moveBatchV2(paths);
+                RelocationBatchV2Result result = launch.isComplete() ? launch.getCompleteValue() : null;
+
+                if (launch.isAsyncJobId()) {
+
+                    RelocationBatchV2JobStatus status = this.pushClient.files()
+                            .moveBatchCheckV2(launch.getAsyncJobIdValue());
+
+                    while (status.isInProgress()) {
+                        Thread.sleep(DBXShell.DBX_PUSH_POLL);
+                        status = this.pushClient.files().moveBatchCheckV2(launch.getAsyncJobIdValue());
+                    } // end while
+
+                    result = status.getCompleteValue();
+
+                } // end if
+
+                for (int x = 0; x < batch.size(); x++) {
+
+                    final String from = batch.get(x)[0];
+                    final String to = batch.get(x)[1];
+
+                    if (result.getEntries().get(x).isSuccess()) {
+
+                        final TreeMap<String, long[]> moved = new TreeMap<String, long[]>(
+                                this.pushed.subMap(from + "/", from + "0"));
+                        final long[] self = this.pushed.remove(from);
+                        this.pushed.subMap(from + "/", from + "0").clear();
+
+                        if (self != null) {
+                            this.pushed.put(to, self);
+                        } // end if
+
+                        for (Map.Entry<String, long[]> entry : moved.entrySet()) {
+                            this.pushed.put(to + entry.getKey().substring(from.length()), entry.getValue());
+                        } // end for
+
+                        this.moves.incrementAndGet();
+                        this.invalidate(from);
+                        this.invalidate(to);
+
+                    } else {
+                        gone.add(from);
+                        this.survey(to, sends, new TreeSet<String>(), folders);
+                    } // end if
+
+                } // end for
+
+            } // end for
+
+        }// end pushMoves
+
+        private void pushDeletes(final TreeSet<String> gone) throws Exception {
+
+            final ArrayList<String> all = new ArrayList<String>(gone);
+
+            for (int start = 0; start < all.size(); start += DBXShell.DBX_PUSH_BATCH) {
+
+                final List<String> batch = all.subList(start, Math.min(all.size(), start + DBXShell.DBX_PUSH_BATCH));
+                final ArrayList<DeleteArg> paths = new ArrayList<DeleteArg>(batch.size());
+
+                for (String rel : batch) {
+                    paths.add(new DeleteArg(this.remoteOf(rel)));
+                } // end for
+
+                final DeleteBatchLaunch launch = this.pushClient.files().deleteBatch(paths);
+                DeleteBatchResult result = launch.isComplete() ? launch.getCompleteValue() : null;
+
+                if (launch.isAsyncJobId()) {
+
+                    DeleteBatchJobStatus status = this.pushClient.files().deleteBatchCheck(launch.getAsyncJobIdValue());
+
+                    while (status.isInProgress()) {
+                        Thread.sleep(DBXShell.DBX_PUSH_POLL);
+                        status = this.pushClient.files().deleteBatchCheck(launch.getAsyncJobIdValue());
+                    } // end while
+
+                    if (status.isFailed()) {
+                        throw new IOException("delete batch failed: " + status.getFailedValue());
+                    } // end if
+
+                    result = status.getCompleteValue();
+
+                } // end if
+
+                for (int x = 0; x < batch.size(); x++) {
+
+                    final DeleteBatchResultEntry entry = result.getEntries().get(x);
+                    final String rel = batch.get(x);
+
+                    // already gone remotely is as good as deleted
+                    if (entry.isSuccess() || (entry.getFailureValue().isPathLookup()
+                            && entry.getFailureValue().getPathLookupValue().isNotFound())) {
+                        this.pushed.remove(rel);
+                        this.pushed.subMap(rel + "/", rel + "0").clear();
+                        this.deletes.incrementAndGet();
+                        this.invalidate(rel);
+                    } else {
+                        this.failures.incrementAndGet();
+                        DBXShell.this.writef("%nAutopush delete '%s' failed : %s%n", rel, entry.getFailureValue());
+                    } // end if
+
+                } // end for
+
+            } // end for
+
+        }// end pushDeletes
+
+        // folders get made by the uploads into them, only empty ones need a call
+        private void pushFolders(final TreeSet<String> folders, final TreeMap<String, long[]> sends)
+                throws Exception {
+
+            for (String rel : folders) {
+
+                if (!sends.subMap(rel + "/", rel + "0").isEmpty() || this.pushed.containsKey(rel)) {
+                    this.pushed.put(rel, new long[] { -1L, 0L });
+                    continue;
+                } // end if
+
+                try {
+                    this.pushClient.files().createFolderV2(this.remoteOf(rel));
+                    this.invalidate(rel);
+                } catch (CreateFolderErrorException ex) {
+                    if (!ex.errorValue.isPath() || !ex.errorValue.getPathValue().isConflict()) {
+                        this.failures.incrementAndGet();
+                        DBXShell.this.writef("%nAutopush folder '%s' failed : %s%n", rel, ex.getMessage());
+                        continue;
+                    } // end if
+                } // end try
+
+                this.pushed.put(rel, new long[] { -1L, 0L });
+
+            } // end for
+
+        }// end pushFolders
+
+        // every file goes up as its own closed upload session, then each group
+        // of them is committed together, which takes one lock per namespace
+        private void pushUploads(final TreeMap<String, long[]> sends) throws Exception {
+
+            final ArrayList<Map.Entry<String, long[]>> all = new ArrayList<Map.Entry<String, long[]>>(
+                    sends.entrySet());
+
+            for (int start = 0; start < all.size() && this.running; start += DBXShell.DBX_PUSH_BATCH) {
+
+                final ArrayList<Map.Entry<String, long[]>> batch = new ArrayList<Map.Entry<String, long[]>>();
+                final ArrayList<UploadSessionFinishArg> commits = new ArrayList<UploadSessionFinishArg>();
+
+                for (Map.Entry<String, long[]> send : all.subList(start,
+                        Math.min(all.size(), start + DBXShell.DBX_PUSH_BATCH))) {
+
+                    if (!this.running) {
+                        break; // stopped, commit the sessions already sent
+                    } // end if
+
+                    try {
+
+                        final UploadSessionCursor cursor = this.send(send.getKey());
+
+                        commits.add(new UploadSessionFinishArg(cursor,
+                                CommitInfo.newBuilder(this.remoteOf(send.getKey())).withMode(WriteMode.OVERWRITE)
+                                        .withClientModified(new Date(send.getValue()[1] / 1000L * 1000L))
+                                        .withMute(true).build()));
+                        batch.add(send);
+
+                    } catch (NoSuchFileException ex) {
+                        // removed again before it went up, its delete event follows
+                    } catch (IOException ex) {
+                        this.failures.incrementAndGet();
+                        DBXShell.this.writef("%nAutopush upload '%s' failed : %s%n", send.getKey(), ex.getMessage());
+                    } // end try
+
+                } // end for
+
+                if (commits.isEmpty()) {
+                    continue;
+                } // end if
+
+                final UploadSessionFinishBatchLaunch launch = this.pushClient.files()
+                        .uploadSessionFinishBatch(commits);
+                UploadSessionFinishBatchResult result = launch.isComplete() ? launch.getCompleteValue() : null;
+
+                if (launch.isAsyncJobId()) {
+
+                    UploadSessionFinishBatchJobStatus status = this.pushClient.files()
+                            .uploadSessionFinishBatchCheck(launch.getAsyncJobIdValue());
+
+                    while (status.isInProgress()) {
+                        Thread.sleep(DBXShell.DBX_PUSH_POLL);
+                        status = this.pushClient.files().uploadSessionFinishBatchCheck(launch.getAsyncJobIdValue());
+                    } // end while
+
+                    result = status.getCompleteValue();
+
+                } // end if
+
+                for (int x = 0; x < batch.size(); x++) {
+
+                    final UploadSessionFinishBatchResultEntry entry = result.getEntries().get(x);
+                    final String rel = batch.get(x).getKey();
+
+                    if (entry.isSuccess()) {
+                        this.pushed.put(rel, batch.get(x).getValue());
+                        this.uploads.incrementAndGet();
+                        this.invalidate(rel);
+                    } else {
+                        this.failures.incrementAndGet();
+                        DBXShell.this.writef("%nAutopush upload '%s' failed : %s%n", rel, entry.getFailureValue());
+                    } // end if
+
+                } // end for
+
+            } // end for
+
+        }// end pushUploads
+
+        // uploads one file into a closed session, small ones in a single request
+        private UploadSessionCursor send(final String rel) throws Exception {
+
+            final Path path = this.root.resolve(rel);
+            final TransferMeter meter = new TransferMeter("put", rel, false);
+            FileChannel channel = null;
+            InputStream fis = null;
+            UploadPipeline pipeline = null;
+
+            try {
+
+                final long size = Files.size(path);
+                meter.setTotal(size);
+
+                UploadSessionCursor cursor;
+
+                if (size <= DBXShell.DBX_UPLOAD_CHUNK) {
+
+                    final byte[] data = Files.readAllBytes(path);
+                    fis = new MeteredInputStream(DBXShell.this.throttle.upload(new ByteArrayInputStream(data)), meter);
+                    cursor = new UploadSessionCursor(this.pushClient.files().uploadSessionStart(true)
+                            .uploadAndFinish(fis, data.length).getSessionId(), data.length);
+
+                } else {
+
+                    if (size >= DBXShell.DBX_MAP_THRESHOLD) {
+                        channel = FileChannel.open(path, StandardOpenOption.READ);
+                        pipeline = new UploadPipeline(channel, "autopush", DBXShell.this.throttle, meter);
+                    } else {
+                        fis = new MeteredInputStream(DBXShell.this.throttle.upload(Files.newInputStream(path)), meter);
+                        pipeline = new UploadPipeline(fis, "autopush");
+                    } // end if
+
+                    cursor = DBXShell.uploadSessionSend(this.pushClient, pipeline, this.remoteOf(rel), null);
+                    this.pushClient.files().uploadSessionAppendV2(cursor, true).uploadAndFinish(pipeline.streamOf(null),
+                            0L);
+
+                } // end if
+
+                meter.finish();
+                DBXShell.this.recordTransfer(meter);
+
+                return cursor;
+
+            } finally {
+                if (pipeline != null) {
+                    pipeline.close();
+                } // end if
+                if (fis != null) {
+                    fis.close();
+                } // end if
+                if (channel != null) {
+                    channel.close();
+                } // end if
+                meter.finish();
+            } // end try
+
+        }// end send
+
+        private void invalidate(final String rel) {
+            DBXShell.this.listingCache.invalidate(this.remoteOf(rel).toLowerCase(Locale.ROOT));
+        }// end invalidate
+
+    }// end class LocalPusher
+
+    // Shell state saved by 'bye' and read back in the background at the next
+    // start: directories, history, and for the same account the listing cache,
+    // the locate index and the watch cursor, in one gzip compressed data file.
+    private static final class SessionState {
+
+        private String accountId = null;
+
+        private String remoteDir = "";
+
+        private String localDir = null;
+
+        private final ArrayList<String> history = new ArrayList<String>();
+
+        private ListingCache listings = null;
+
+        private PathIndex index = null;
+
+        private String watchRoot = null;
+
+        private String watchCursor = null;
+
+        private boolean watchVerbose = false;
+
+        void save(final File file) throws IOException {
+
+            final File temp = new File(file.getPath() + ".tmp");
+
+            DBXShell.createPrivateFile(temp.toPath());
+
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+
+            try {
+
+                out.writeInt(DBXShell.DBX_SESSION_MAGIC);
+                SessionState.writeString(out, this.accountId);
+                SessionState.writeString(out, this.remoteDir);
+                SessionState.writeString(out, this.localDir);
+
+                out.writeInt(this.history.size());
+                for (String line : this.history) {
+                    SessionState.writeString(out, line);
+                } // end for
+
+                out.writeBoolean(this.listings != null);
+                if (this.listings != null) {
+                    this.listings.write(out);
+                } // end if
+
+                out.writeBoolean(this.index != null);
+                if (this.index != null) {
+                    this.index.write(out);
+                } // end if
+
+                SessionState.writeString(out, this.watchRoot);
+                SessionState.writeString(out, this.watchCursor);
+                out.writeBoolean(this.watchVerbose);
+
+            } finally {
+                out.close();
+            } // end try
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        }// end save
+
+        static SessionState load(final File file) throws IOException {
+
+            final SessionState state = new SessionState();
+
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+            try {
+
+                if (in.readInt() != DBXShell.DBX_SESSION_MAGIC) {
+                    throw new IOException("not a session file of this shell version");
+                } // end if
+
+                state.accountId = SessionState.readString(in);
+                state.remoteDir = SessionState.readString(in);
+                state.localDir = SessionState.readString(in);
+
+                for (int count = in.readInt(); count > 0; count--) {
+                    state.history.add(SessionState.readString(in));
+                } // end for
+
+                if (in.readBoolean()) {
+                    state.listings = new ListingCache(DBXShell.DBX_CACHE_BUDGET);
+                    state.listings.read(in);
+                } // end if
+
+                if (in.readBoolean()) {
+                    state.index = PathIndex.read(in);
+                } // end if
+
+                state.watchRoot = SessionState.readString(in);
+                state.watchCursor = SessionState.readString(in);
+                state.watchVerbose = in.readBoolean();
+
+            } finally {
+                in.close();
+            } // end try
+
+            return state;
+
+        }// end load
+
+        static void writeString(final DataOutputStream out, final String text) throws IOException {
+
+            if (text == null) {
+                out.writeInt(-1);
+                return;
+            } // end if
+
+            final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+
+        }// end writeString
+
+        static String readString(final DataInputStream in) throws IOException {
+
+            final int length = in.readInt();
+
+            if (length < 0) {
+                return null;
+            } // end if
+
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+
+        }// end readString
+
+        static void writeMetadata(final DataOutputStream out, final Metadata meta) throws IOException {
+
+            if (meta instanceof FileMetadata) {
+
+                final FileMetadata file = (FileMetadata) meta;
+
+                out.writeByte('f');
+                SessionState.writeString(out, file.getName());
+                SessionState.writeString(out, file.getId());
+                SessionState.writeString(out, file.getPathLower());
+                SessionState.writeString(out, file.getPathDisplay());
+                out.writeLong(file.getClientModified().getTime());
+                out.writeLong(file.getServerModified().getTime());
+                SessionState.writeString(out, file.getRev());
+                out.writeLong(file.getSize());
+                SessionState.writeString(out, file.getContentHash());
+
+            } else {
+
+                final FolderMetadata folder = (FolderMetadata) meta;
+
+                out.writeByte('d');
+                SessionState.writeString(out, folder.getName());
+                SessionState.writeString(out, folder.getId());
+                SessionState.writeString(out, folder.getPathLower());
+                SessionState.writeString(out, folder.getPathDisplay());
+
+            } // end if
+
+        }// end writeMetadata
+
+        static Metadata readMetadata(final DataInputStream in) throws IOException {
+
+            final int type = in.readByte();
+
+            final String name = SessionState.readString(in);
+            final String id = SessionState.readString(in);
+            final String lower = SessionState.readString(in);
+            final String display = SessionState.readString(in);
+
+            if (type == 'd') {
+                return new FolderMetadata(name, id, lower, display, null, null, null, null);
+            } // end if
+
+            final Date clientModified = new Date(in.readLong());
+            final Date serverModified = new Date(in.readLong());
+            final String rev = SessionState.readString(in);
+            final long size = in.readLong();
+            final String hash = SessionState.readString(in);
+
+            return FileMetadata.newBuilder(name, id, clientModified, serverModified, rev, size).withPathLower(lower)
+                    .withPathDisplay(display).withContentHash(hash).build();
+
+        }// end readMetadata
+
+    }// end class SessionState
+
+    // Trigram index over remote path names. Every lower case path is split into
+    // three character grams, and each gram keeps a posting list of the ascending
+    // entry ids that contain it, packed as variable length deltas. The paths
+    // themselves live in a RemoteTree; an entry id names the tree node it had
+    // when it was added, so a removed entry simply stops being listed.
+    private static final class PathIndex {
+
+        private final String root;
+
+        private String cursor = null;
+
+        private RemoteTree tree = new RemoteTree();
+
+        private int[] nodes = new int[1024]; // tree node of each entry id
+
+        private int entries = 0;
+
+        private final HashMap<Long, Posting> postings = new HashMap<Long, Posting>();
+
+        PathIndex(final String root) {
+            this.root = root;
+        }// end PathIndex
+
+        String getRoot() {
+            return this.root;
+        }// end getRoot
+
+        synchronized String getCursor() {
+            return this.cursor;
+        }// end getCursor
+
+        synchronized void setCursor(final String cursor) {
+            this.cursor = cursor;
+        }// end setCursor
+
+        synchronized int size() {
+            return this.tree.size();
+        }// end size
+
+        synchronized int apply(final List<Metadata> entries) {
+
+            int changes = 0;
+
+            for (Metadata meta : entries) {
+                if (meta instanceof DeletedMetadata) {
+                    changes += this.tree.remove(meta.getPathLower());
+                } else {
+                    changes += this.add(meta.getPathDisplay(), meta.getPathLower());
+                } // end if
+            } // end for
+
+            if (this.tree.dead() > 1024 && this.tree.dead() > this.tree.count() / 2) {
+                this.compact();
+            } // end if
+
+            return changes;
+
+        }// end apply
+
+        synchronized List<String> find(final String pattern) {
+
+            final String lower = pattern.toLowerCase(Locale.ROOT);
+
+            Pattern matcher = null;
+            List<String> literals;
+
+            if (PathIndex.isGlob(lower)) {
+                matcher = Pattern.compile(PathIndex.globToRegex(lower), Pattern.DOTALL);
+                literals = PathIndex.globLiterals(lower);
+            } else {
+                literals = new ArrayList<String>(1);
+                literals.add(lower);
+            } // end if
+
+            final ArrayList<String> found = new ArrayList<String>();
+
+            final int[] candidates = this.candidates(literals);
+
+            if (candidates == null) {
+                for (int id = 0; id < this.entries; id++) {
+                    this.match(id, lower, matcher, found);
+                } // end for
+            } else {
+                for (int id : candidates) {
+                    this.match(id, lower, matcher, found);
+                } // end for
+            } // end if
+
+            return found;
+
+        }// end find
+
+        synchronized List<String> findRegex(final String regex) {
+
+            final Pattern matcher = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+            final ArrayList<String> found = new ArrayList<String>();
+
+            for (int id = 0; id < this.entries; id++) {
+
+                final int node = this.nodes[id];
+
+                if (this.tree.isListed(node)) {
+                    final String path = this.tree.path(node);
+                    if (matcher.matcher(path).find()) {
+                        found.add(path);
+                    } // end if
+                } // end if
+
+            } // end for
+
+            return found;
+
+        }// end findRegex
+
+        synchronized void write(final DataOutputStream out) throws IOException {
+
+            SessionState.writeString(out, this.root);
+            SessionState.writeString(out, this.cursor);
+            out.writeInt(this.tree.size());
+
+            for (int node : this.tree.walk(RemoteTree.ROOT)) {
+                SessionState.writeString(out, this.tree.lowerPath(node));
+                SessionState.writeString(out, this.tree.path(node));
+            } // end for
+
+        }// end write
+
+        static PathIndex read(final DataInputStream in) throws IOException {
+
+            final PathIndex index = new PathIndex(SessionState.readString(in));
+            index.cursor = SessionState.readString(in);
+
+            for (int count = in.readInt(); count > 0; count--) {
+                final String lower = SessionState.readString(in);
+                index.add(SessionState.readString(in), lower);
+            } // end for
+
+            index.trim();
+
+            return index;
+
+        }// end read
+
+        synchronized void trim() {
+            for (Posting posting : this.postings.values()) {
+                posting.trim();
+            } // end for
+            this.tree.trim();
+            this.nodes = Arrays.copyOf(this.nodes, this.entries);
+        }// end trim
+
+        private int add(final String path, final String lower) {
+
+            final int known = this.tree.find(lower);
+
+            if (known >= 0 && this.tree.isListed(known)) {
+                this.tree.add(path, lower); // may differ in case only
+                return 0;
+            } // end if
+
+            if (this.entries == this.nodes.length) {
+                this.nodes = Arrays.copyOf(this.nodes, Math.max(1024, this.entries * 2));
+            } // end if
+
+            final int id = this.entries++;
+
+            this.nodes[id] = this.tree.add(path, lower);
+
+            for (int x = 0; x + 3 <= lower.length(); x++) {
+
+                final Long gram = PathIndex.gram(lower, x);
+
+                Posting posting = this.postings.get(gram);
+                if (posting == null) {
+                    posting = new Posting();
+                    this.postings.put(gram, posting);
+                } // end if
+
+                posting.add(id);
+
+            } // end for
+
+            return 1;
+
+        }// end add
+
+        private int[] candidates(final List<String> literals) {
+
+            final ArrayList<Posting> lists = new ArrayList<Posting>();
+
+            for (String literal : literals) {
+                for (int x = 0; x + 3 <= literal.length(); x++) {
+
+                    final Posting posting = this.postings.get(PathIndex.gram(literal, x));
+                    if (posting == null) {
+                        return new int[0]; // gram never seen, nothing can match
+                    } // end if
+
+                    lists.add(posting);
+
+                } // end for
+            } // end for
+
+            if (lists.isEmpty()) {
+                return null; // pattern too short for grams, scan everything
+            } // end if
+
+            Collections.sort(lists, new Comparator<Posting>() {
+                @Override
+                public int compare(final Posting a, final Posting b) {
+                    return Integer.compare(a.count, b.count);
+                }// end compare
+            });
+
+            int[] result = lists.get(0).decode();
+
+            for (int x = 1; x < lists.size() && result.length > 0; x++) {
+
+                // once the candidates are few, checking them is cheaper than a long list
+                if (lists.get(x).count > result.length * 16) {
+                    break;
+                } // end if
+
+                result = lists.get(x).intersect(result);
+
+            } // end for
+
+            return result;
+
+        }// end candidates
+
+        private void compact() {
+
+            final RemoteTree old = this.tree;
+
+            this.tree = new RemoteTree();
+            this.nodes = new int[Math.max(1024, old.size())];
+            this.entries = 0;
+            this.postings.clear();
+
+            for (int node : old.walk(RemoteTree.ROOT)) {
+                this.add(old.path(node), old.lowerPath(node));
+            } // end for
+
+            this.trim();
+
+        }// end compact
+
+        private void match(final int id, final String lower, final Pattern matcher, final List<String> found) {
+
+            final int node = this.nodes[id];
+
+            if (!this.tree.isListed(node)) {
+                return;
+            } // end if
+
+            final String key = this.tree.lowerPath(node);
+
+            if (matcher == null ? key.contains(lower) : matcher.matcher(key).matches()) {
+                found.add(this.tree.path(node));
+            } // end if
+
+        }// end match
+
+        private static Long gram(final String text, final int x) {
+            return ((long) text.charAt(x) << 32) | ((long) text.charAt(x + 1) << 16) | text.charAt(x + 2);
+        }// end gram
+
+        private static boolean isGlob(final String pattern) {
+            return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0 || pattern.indexOf('[') >= 0;
+        }// end isGlob
+
+        private static List<String> globLiterals(final String glob) {
+
+            final ArrayList<String> literals = new ArrayList<String>();
+            final StringBuilder run = new StringBuilder();
+
+            boolean bracket = false;
+
+            for (int x = 0; x < glob.length(); x++) {
+
+                final char c = glob.charAt(x);
+
+                if (bracket) {
+                    bracket = c != ']';
+                } else if (c == '*' || c == '?' || c == '[') {
+                    bracket = c == '[';
+                    literals.add(run.toString());
+                    run.setLength(0);
+                } else {
+                    run.append(c);
+                } // end if
+
+            } // end for
+
+            literals.add(run.toString());
+
+            return literals;
+
+        }// end globLiterals
+
+        private static String globToRegex(final String glob) {
+
+            final StringBuilder regex = new StringBuilder();
+
+            // like locate(1), a glob without a leading '/' may match anywhere
+            if (glob.charAt(0) != '/' && glob.charAt(0) != '*') {
+                regex.append(".*");
+            } // end if
+
+            boolean bracket = false;
+
+            for (int x = 0; x < glob.length(); x++) {
+
+                final char c = glob.charAt(x);
+
+                if (bracket) {
+                    if (c == ']') {
+                        bracket = false;
+                        regex.append(']');
+                    } else if (c == '\\' || c == '[') {
+                        regex.append('\\').append(c);
+                    } else {
+                        regex.append(c);
+                    } // end if
+                } else if (c == '*') {
+                    regex.append(".*");
+                } else if (c == '?') {
+                    regex.append('.');
+                } else if (c == '[') {
+                    bracket = true;
+                    regex.append('[');
+                    if (x + 1 < glob.length() && glob.charAt(x + 1) == '!') {
+                        regex.append('^');
+                        x++;
+                    } // end if
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                } // end if
+
+            } // end for
+
+            return regex.toString();
+
+        }// end globToRegex
+
+    }// end class PathIndex
+
+    // Compact remote tree for accounts with millions of entries. Every path
+    // segment is interned once as UTF-8 in a shared pool; a node is an int id
+    // into parallel primitive columns (parent, name, lower case key, flags),
+    // and a folder keeps its children as an int array sorted by key, so a
+    // lookup is one binary search per segment and a prefix walk builds no
+    // strings. Size, mtime, rev and content hash columns are only allocated
+    // once a caller stores file metadata. Not thread safe; owners lock.
+    private static final class RemoteTree {
+
+        static final int ROOT = 0;
+
+        private static final byte LISTED = 1; // seen as an entry, not only as a parent
+
+        private static final byte FOLDER = 2;
+
+        private static final byte DEAD = 4;
+
+        private static final byte HASHED = 8;
+
+        private byte[] pool = new byte[4096];
+
+        private int poolSize = 0;
+
+        private int[] starts = new int[256]; // segment s is pool[starts[s]] up to pool[starts[s + 1]]
+
+        private int segments = 0;
+
+        private int[] table = new int[512]; // open addressing, segment id + 1, zero is empty
+
+        private int count = 0;
+
+        private int listed = 0;
+
+        private int removed = 0;
+
+        private int[] parent = new int[256];
+
+        private int[] name = new int[256]; // display segment
+
+        private int[] key = new int[256]; // lower case segment, children are sorted by it
+
+        private byte[] flags = new byte[256];
+
+        private int[][] children = new int[256][];
+
+        private int[] childCount = new int[256];
+
+        private long[] size = null;
+
+        private long[] modified = null;
+
+        private long[] rev = null; // hex rev as two numbers per node, with its digit count in revDigits
+
+        private byte[] revDigits = null;
+
+        private byte[] hash = null; // 32 bytes per node
+
+        private final HashMap<Integer, String> oddRevs = new HashMap<Integer, String>(); // revs that do not pack
+
+        private final HashMap<Integer, String> oddHashes = new HashMap<Integer, String>();
+
+        RemoteTree() {
+            final int root = this.intern(new byte[0]);
+            this.create(-1, 0, root, root);
+        }// end RemoteTree
+
+        // entries seen and not removed
+        int size() {
+            return this.listed;
+        }// end size
+
+        // node ids in use, removed ones included
+        int count() {
+            return this.count;
+        }// end count
+
+        int dead() {
+            return this.removed;
+        }// end dead
+
+        boolean isListed(final int node) {
+            return (this.flags[node] & RemoteTree.LISTED) != 0;
+        }// end isListed
+
+        boolean isFolder(final int node) {
+            return (this.flags[node] & RemoteTree.FOLDER) != 0;
+        }// end isFolder
+
+        // the node for a lower case path, listed or only a parent, or -1
+        int find(final String lower) {
+
+            int node = RemoteTree.ROOT;
+
+            for (int start = 1; start <= lower.length() && node >= 0;) {
+
+                int end = lower.indexOf('/', start);
+                if (end < 0) {
+                    end = lower.length();
+                } // end if
+
+                final int at = this.search(node, lower.substring(start, end).getBytes(StandardCharsets.UTF_8));
+                node = at < 0 ? -1 : this.children[node][at];
+                start = end + 1;
+
+            } // end for
+
+            return node;
+
+        }// end find
+
+        // lists a path, making any missing parents on the way, and returns its node
+        int add(final String display, final String lower) {
+
+            int node = RemoteTree.ROOT;
+            int shown = 1;
+
+            for (int start = 1; start <= lower.length();) {
+
+                int end = lower.indexOf('/', start);
+                if (end < 0) {
+                    end = lower.length();
+                } // end if
+
+                int stop = display.indexOf('/', shown);
+                if (stop < 0) {
+                    stop = display.length();
+                } // end if
+
+                final byte[] segment = lower.substring(start, end).getBytes(StandardCharsets.UTF_8);
+                final int at = this.search(node, segment);
+                final int label = this.intern(
+                        (shown <= display.length() ? display.substring(shown, stop) : lower.substring(start, end))
+                                .getBytes(StandardCharsets.UTF_8));
+
+                if (at >= 0) {
+                    node = this.children[node][at];
+                    if (end == lower.length()) {
+                        this.name[node] = label; // the case may have changed
+                    } // end if
+                } else {
+                    node = this.create(node, -(at + 1), label, this.intern(segment));
+                } // end if
+
+                start = end + 1;
+                shown = stop + 1;
+
+            } // end for
+
+            if (!this.isListed(node)) {
+                this.flags[node] |= RemoteTree.LISTED;
+                this.listed++;
+            } // end if
+
+            return node;
+
+        }// end add
+
+        // drops a path and everything below it, returning the listed entries dropped
+        int remove(final String lower) {
+
+            final int node = this.find(lower);
+
+            if (node <= RemoteTree.ROOT) {
+                return 0;
+            } // end if
+
+            final int above = this.parent[node];
+            final int at = this.search(above, this.segment(this.key[node]));
+            System.arraycopy(this.children[above], at + 1, this.children[above], at, this.childCount[above] - at - 1);
+            this.childCount[above]--;
+
+            int dropped = 0;
+
+            for (int member : this.walk(node, true)) {
+
+                if (this.isListed(member)) {
+                    this.listed--;
+                    dropped++;
+                } // end if
+
+                this.flags[member] = RemoteTree.DEAD;
+                this.children[member] = null;
+                this.childCount[member] = 0;
+                this.oddRevs.remove(member);
+                this.oddHashes.remove(member);
+                this.removed++;
+
+            } // end for
+
+            return dropped;
+
+        }// end remove
+
+        // the listed nodes at and below 'from', parents before children and
+        // siblings in key order
+        int[] walk(final int from) {
+            return this.walk(from, false);
+        }// end walk
+
+        private int[] walk(final int from, final boolean all) {
+
+            int[] found = new int[16];
+            int size = 0;
+
+            int[] stack = new int[16];
+            int depth = 0;
+            stack[depth++] = from;
+
+            while (depth > 0) {
+
+                final int node = stack[--depth];
+
+                if (all || this.isListed(node)) {
+                    if (size == found.length) {
+                        found = Arrays.copyOf(found, size * 2);
+                    } // end if
+                    found[size++] = node;
+                } // end if
+
+                if (depth + this.childCount[node] > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, depth + this.childCount[node]));
+                } // end if
+
+                for (int x = this.childCount[node] - 1; x >= 0; x--) {
+                    stack[depth++] = this.children[node][x];
+                } // end for
+
+            } // end while
+
+            return Arrays.copyOf(found, size);
+
+        }// end walk
+
+        String path(final int node) {
+            return this.join(node, this.name);
+        }// end path
+
+        String lowerPath(final int node) {
+            return this.join(node, this.key);
+        }// end lowerPath
+
+        private String join(final int node, final int[] column) {
+
+            if (node == RemoteTree.ROOT) {
+                return "";
+            } // end if
+
+            int depth = 0;
+            for (int at = node; at != RemoteTree.ROOT; at = this.parent[at]) {
+                depth++;
+            } // end for
+
+            final String[] parts = new String[depth];
+            for (int at = node; at != RemoteTree.ROOT; at = this.parent[at]) {
+                parts[--depth] = new String(this.pool, this.starts[column[at]],
+                        this.starts[column[at] + 1] - this.starts[column[at]], StandardCharsets.UTF_8);
+            } // end for
+
+            final StringBuilder path = new StringBuilder();
+            for (String part : parts) {
+                path.append('/').append(part);
+            } // end for
+
+            return path.toString();
+
+        }// end join
+
+        void setFolder(final int node) {
+            this.flags[node] = (byte) ((this.flags[node] | RemoteTree.FOLDER) & ~RemoteTree.HASHED);
+            if (this.revDigits != null) {
+                this.revDigits[node] = 0;
+            } // end if
+            this.oddRevs.remove(node);
+            this.oddHashes.remove(node);
+        }// end setFolder
+
+        void setFile(final int node, final long bytes, final long mtime, final String revision, final String digest) {
+
+            if (this.size == null) {
+                final int length = this.parent.length;
+                this.size = new long[length];
+                this.modified = new long[length];
+                this.rev = new long[length * 2];
+                this.revDigits = new byte[length];
+                this.hash = new byte[length * 32];
+            } // end if
+
+            this.flags[node] &= ~(RemoteTree.FOLDER | RemoteTree.HASHED);
+            this.size[node] = bytes;
+            this.modified[node] = mtime;
+            this.revDigits[node] = 0;
+            this.oddRevs.remove(node);
+            this.oddHashes.remove(node);
+
+            if (revision != null && !revision.isEmpty() && revision.length() <= 32 && RemoteTree.isHex(revision)) {
+                final int split = Math.max(0, revision.length() - 16);
+                this.rev[node * 2] = split == 0 ? 0L : Long.parseUnsignedLong(revision.substring(0, split), 16);
+                this.rev[node * 2 + 1] = Long.parseUnsignedLong(revision.substring(split), 16);
+                this.revDigits[node] = (byte) revision.length();
+            } else if (revision != null) {
+                this.revDigits[node] = -1;
+                this.oddRevs.put(node, revision);
+            } // end if
+
+            if (digest != null && digest.length() == 64 && RemoteTree.isHex(digest)) {
+                for (int x = 0; x < 32; x++) {
+                    this.hash[node * 32 + x] = (byte) Integer.parseInt(digest.substring(x * 2, x * 2 + 2), 16);
+                } // end for
+                this.flags[node] |= RemoteTree.HASHED;
+            } else if (digest != null) {
+                this.oddHashes.put(node, digest);
+            } // end if
+
+        }// end setFile
+
+        long getSize(final int node) {
+            return this.size == null || this.isFolder(node) ? -1L : this.size[node];
+        }// end getSize
+
+        long getModified(final int node) {
+            return this.modified == null ? 0L : this.modified[node];
+        }// end getModified
+
+        String getRev(final int node) {
+
+            if (this.revDigits == null || this.revDigits[node] == 0) {
+                return null;
+            } // end if
+
+            if (this.revDigits[node] < 0) {
+                return this.oddRevs.get(node);
+            } // end if
+
+            final String low = Long.toHexString(this.rev[node * 2 + 1]);
+            final StringBuilder hex = new StringBuilder(32);
+
+            if (this.revDigits[node] > 16) {
+                hex.append(Long.toHexString(this.rev[node * 2]));
+                for (int x = low.length(); x < 16; x++) {
+                    hex.append('0');
+                } // end for
+            } // end if
+            hex.append(low);
+
+            while (hex.length() < this.revDigits[node]) {
+                hex.insert(0, '0');
+            } // end while
+
+            return hex.toString();
+
+        }// end getRev
+
+        String getHash(final int node) {
+
+            if ((this.flags[node] & RemoteTree.HASHED) == 0) {
+                return this.oddHashes.get(node);
+            } // end if
+
+            final StringBuilder hex = new StringBuilder(64);
+            for (int x = 0; x < 32; x++) {
+                hex.append(String.format("%02x", this.hash[node * 32 + x] & 0xff));
+            } // end for
+
+            return hex.toString();
+
+        }// end getHash
+
+        // gives back the spare room of every growing array once a build is done
+        void trim() {
+
+            this.resize(this.count);
+            this.pool = Arrays.copyOf(this.pool, this.poolSize);
+            this.starts = Arrays.copyOf(this.starts, this.segments + 1);
+
+            for (int node = 0; node < this.count; node++) {
+                if (this.children[node] != null && this.children[node].length > this.childCount[node]) {
+                    this.children[node] = Arrays.copyOf(this.children[node], this.childCount[node]);
+                } // end if
+            } // end for
+
+        }// end trim
+
+        private int create(final int above, final int at, final int label, final int segment) {
+
+            if (this.count == this.parent.length) {
+                this.resize(Math.max(16, this.count * 2));
+            } // end if
+
+            final int node = this.count++;
+
+            this.parent[node] = above;
+            this.name[node] = label;
+            this.key[node] = segment;
+            this.flags[node] = 0;
+
+            if (above >= 0) {
+
+                int[] list = this.children[above];
+                final int used = this.childCount[above];
+
+                if (list == null) {
+                    list = new int[4];
+                } else if (used == list.length) {
+                    list = Arrays.copyOf(list, Math.max(4, used * 2)); // trim() may have left it empty
+                } // end if
+
+                System.arraycopy(list, at, list, at + 1, used - at);
+                list[at] = node;
+
+                this.children[above] = list;
+                this.childCount[above] = used + 1;
+                this.flags[above] |= RemoteTree.FOLDER;
+
+            } // end if
+
+            return node;
+
+        }// end create
+
+        private void resize(final int length) {
+
+            this.parent = Arrays.copyOf(this.parent, length);
+            this.name = Arrays.copyOf(this.name, length);
+            this.key = Arrays.copyOf(this.key, length);
+            this.flags = Arrays.copyOf(this.flags, length);
+            this.children = Arrays.copyOf(this.children, length);
+            this.childCount = Arrays.copyOf(this.childCount, length);
+
+            if (this.size != null) {
+                this.size = Arrays.copyOf(this.size, length);
+                this.modified = Arrays.copyOf(this.modified, length);
+                this.rev = Arrays.copyOf(this.rev, length * 2);
+                this.revDigits = Arrays.copyOf(this.revDigits, length);
+                this.hash = Arrays.copyOf(this.hash, length * 32);
+            } // end if
+
+        }// end resize
+
+        // position of the child with this key, or -(insertion point + 1)
+        private int search(final int node, final byte[] segment) {
+
+            final int[] list = this.children[node];
+
+            int low = 0;
+            int high = this.childCount[node] - 1;
+
+            while (low <= high) {
+
+                final int middle = (low + high) >>> 1;
+                final int order = this.compare(this.key[list[middle]], segment);
+
+                if (order < 0) {
+                    low = middle + 1;
+                } else if (order > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                } // end if
+
+            } // end while
+
+            return -(low + 1);
+
+        }// end search
+
+        private int compare(final int segment, final byte[] other) {
+
+            final int start = this.starts[segment];
+            final int length = this.starts[segment + 1] - start;
+
+            for (int x = 0; x < Math.min(length, other.length); x++) {
+                final int order = (this.pool[start + x] & 0xff) - (other[x] & 0xff);
+                if (order != 0) {
+                    return order;
+                } // end if
+            } // end for
+
+            return length - other.length;
+
+        }// end compare
+
+        private byte[] segment(final int segment) {
+            return Arrays.copyOfRange(this.pool, this.starts[segment], this.starts[segment + 1]);
+        }// end segment
+
+        private int intern(final byte[] bytes) {
+
+            final int mask = this.table.length - 1;
+
+            for (int slot = RemoteTree.hashOf(bytes, 0, bytes.length) & mask;; slot = (slot + 1) & mask) {
+
+                final int entry = this.table[slot];
+
+                if (entry == 0) {
+                    return this.append(bytes, slot);
+                } // end if
+
+                if (this.compare(entry - 1, bytes) == 0) {
+                    return entry - 1;
+                } // end if
+
+            } // end for
+
+        }// end intern
+
+        private int append(final byte[] bytes, final int slot) {
+
+            if (this.poolSize + bytes.length > this.pool.length) {
+                this.pool = Arrays.copyOf(this.pool, Math.max(this.pool.length * 2, this.poolSize + bytes.length));
+            } // end if
+
+            if (this.segments + 2 > this.starts.length) {
+                this.starts = Arrays.copyOf(this.starts, this.starts.length * 2);
+            } // end if
+
+            System.arraycopy(bytes, 0, this.pool, this.poolSize, bytes.length);
+            this.poolSize += bytes.length;
+
+            final int segment = this.segments++;
+            this.starts[segment + 1] = this.poolSize;
+            this.table[slot] = segment + 1;
+
+            if (this.segments * 2 > this.table.length) {
+
+                this.table = new int[this.table.length * 2];
+                final int mask = this.table.length - 1;
+
+                for (int s = 0; s < this.segments; s++) {
+                    int at = RemoteTree.hashOf(this.pool, this.starts[s], this.starts[s + 1] - this.starts[s]) & mask;
+                    while (this.table[at] != 0) {
+                        at = (at + 1) & mask;
+                    } // end while
+                    this.table[at] = s + 1;
+                } // end for
+
+            } // end if
+
+            return segment;
+
+        }// end append
+
+        private static int hashOf(final byte[] bytes, final int start, final int length) {
+
+            int hash = 0x811c9dc5;
+
+            for (int x = start; x < start + length; x++) {
+                hash = (hash ^ (bytes[x] & 0xff)) * 0x01000193;
+            } // end for
+
+            return hash ^ (hash >>> 16);
+
+        }// end hashOf
+
+        private static boolean isHex(final String text) {
+
+            for (int x = 0; x < text.length(); x++) {
+                final char c = text.charAt(x);
+                if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                    return false;
+                } // end if
+            } // end for
+
+            return true;
+
+        }// end isHex
+
+    }// end class RemoteTree
+
+    // Ascending id list stored as variable length encoded deltas.
+    private static final class Posting {
+
+        private byte[] data = new byte[8];
+
+        private int length = 0;
+
+        private int count = 0;
+
+        private int last = -1;
+
+        void add(final int id) {
+
+            if (id == this.last) {
+                return;
+            } // end if
+
+            if (this.length + 5 > this.data.length) {
+                this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.length + 5));
+            } // end if
+
+            int delta = id - this.last;
+            while (delta >= 0x80) {
+                this.data[this.length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            } // end while
+            this.data[this.length++] = (byte) delta;
+
+            this.last = id;
+            this.count++;
+
+        }// end add
+
+        int[] decode() {
+
+            final int[] ids = new int[this.count];
+
+            int pos = 0;
+            int id = -1;
+
+            for (int x = 0; x < this.count; x++) {
+
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = this.data[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                id += delta;
+                ids[x] = id;
+
+            } // end for
+
+            return ids;
+
+        }// end decode
+
+        int[] intersect(final int[] other) {
+
+            final int[] result = new int[Math.min(other.length, this.count)];
+
+            int size = 0;
+            int pos = 0;
+            int id = -1;
+            int y = 0;
+
+            for (int x = 0; x < this.count && y < other.length; x++) {
+
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = this.data[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                id += delta;
+
+                while (y < other.length && other[y] < id) {
+                    y++;
+                } // end while
+
+                if (y < other.length && other[y] == id) {
+                    result[size++] = id;
+                    y++;
+                } // end if
+
+            } // end for
+
+            return Arrays.copyOf(result, size);
+
+        }// end intersect
+
+        void trim() {
+            this.data = Arrays.copyOf(this.data, this.length);
+        }// end trim
+
+    }// end class Posting
+
+    // Parallel recursive lister. Each folder is a task on a bounded pool that lists
+    // one level and queues its subfolders; a chain of single-child folders is not
+    // worth fanning out, so below it the rest is paged with one recursive cursor.
+    private static final class RemoteCrawler {
+
+        interface Visitor {
+            void visit(List<Metadata> entries); // called from worker threads
+        }// end interface Visitor
+
+        private final DbxClientV2 client;
+
+        private final int threads;
+
+        private final AtomicLong entries = new AtomicLong();
+
+        private final AtomicLong folders = new AtomicLong();
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final Object lock = new Object();
+
+        private volatile Exception failure = null;
+
+        private volatile long startNanos = 0L;
+
+        private ExecutorService pool = null;
+
+        private Visitor visitor = null;
+
+        RemoteCrawler(final DbxClientV2 client, final int threads) {
+            this.client = client;
+            this.threads = threads;
+        }// end RemoteCrawler
+
+        long getEntries() {
+            return this.entries.get();
+        }// end getEntries
+
+        long getFolders() {
+            return this.folders.get();
+        }// end getFolders
+
+        int getPending() {
+            return this.pending.get();
+        }// end getPending
+
+        double getEntriesPerSecond() {
+            final long elapsed = System.nanoTime() - this.startNanos;
+            return elapsed <= 0L ? 0.0 : this.entries.get() * 1.0e9 / elapsed;
+        }// end getEntriesPerSecond
+
+        // Visits every entry under root and returns a recursive cursor taken before
+        // the crawl, so later deltas from it cover anything the crawl raced with.
+        String crawl(final String root, final Visitor visitor, final Runnable progress)
+                throws DbxException, InterruptedException {
+
+            final String cursor = this.client.files().listFolderGetLatestCursorBuilder(root).withRecursive(true)
+                    .withIncludeDeleted(false).withIncludeMediaInfo(false).start().getCursor();
+
+            this.visitor = visitor;
+            this.startNanos = System.nanoTime();
+
+            this.pool = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable task) {
+                            final Thread thread = new Thread(task, "dbx-crawler");
+                            thread.setDaemon(true);
+                            return thread;
+                        }// end newThread
+                    });
+
+            try {
+
+                this.submit(root, 0);
+
+                long lastReport = System.currentTimeMillis();
+
+                synchronized (this.lock) {
+                    while (this.pending.get() > 0 && this.failure == null) {
+
+                        this.lock.wait(250L);
+
+                        final long now = System.currentTimeMillis();
+                        if (progress != null && now - lastReport >= DBXShell.DBX_CRAWL_REPORT) {
+                            progress.run();
+                            lastReport = now;
+                        } // end if
+
+                    } // end while
+                } // end synchronized
+
+            } finally {
+                this.pool.shutdownNow();
+            } // end try
+
+            if (this.failure instanceof DbxException) {
+                throw (DbxException) this.failure;
+            } else if (this.failure != null) {
+                throw new IllegalStateException(this.failure.getMessage(), this.failure);
+            } // end if
+
+            return cursor;
+
+        }// end crawl
+
+        private void submit(final String folder, final int narrow) {
+
+            final boolean recursive = narrow >= DBXShell.DBX_CRAWL_NARROW && this.pending.get() < this.threads;
+
+            this.pending.incrementAndGet();
+
+            this.pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RemoteCrawler.this.list(folder, recursive, narrow);
+                }// end run
+            });
+
+        }// end submit
+
+        private void list(final String folder, final boolean recursive, final int narrow) {
+
+            try {
+
+                if (this.failure != null) {
+                    return;
+                } // end if
+
+                final ArrayList<String> subfolders = new ArrayList<String>();
+
+                ListFolderResult result = this.client.files().listFolderBuilder(folder).withRecursive(recursive)
+                        .withIncludeDeleted(false).withIncludeMediaInfo(false).start();
+
+                while (true) {
+
+                    final ArrayList<Metadata> page = new ArrayList<Metadata>(result.getEntries().size());
+
+                    for (Metadata meta : result.getEntries()) {
+
+                        if (meta instanceof FolderMetadata) {
+
+                            if (meta.getPathLower().equals(folder)) {
+                                continue; // a recursive listing repeats its own folder
+                            } // end if
+
+                            this.folders.incrementAndGet();
+
+                            if (!recursive) {
+                                subfolders.add(meta.getPathLower());
+                            } // end if
+
+                        } // end if
+
+                        page.add(meta);
+
+                    } // end for
+
+                    this.entries.addAndGet(page.size());
+                    this.visitor.visit(page);
+
+                    if (!result.getHasMore() || this.failure != null) {
+                        break;
+                    } // end if
+
+                    result = this.client.files().listFolderContinue(result.getCursor());
+
+                } // end while
+
+                for (String subfolder : subfolders) {
+                    this.submit(subfolder, subfolders.size() == 1 ? narrow + 1 : 0);
+                } // end for
+
+            } catch (Exception ex) {
+                if (this.failure == null) {
+                    this.failure = ex;
+                } // end if
+            } finally {
+                if (this.pending.decrementAndGet() == 0 || this.failure != null) {
+                    synchronized (this.lock) {
+                        this.lock.notifyAll();
+                    } // end synchronized
+                } // end if
+            } // end try
+
+        }// end list
+
+    }// end class RemoteCrawler
+
+    // Running byte and file totals for one remote folder in 'du'.
+    private static final class UsageTotal {
+
+        private final String path;
+
+        private long bytes = 0L;
+
+        private long files = 0L;
+
+        UsageTotal(final String path) {
+            this.path = path;
+        }// end UsageTotal
+
+        void add(final long size) {
+            this.bytes += size;
+            this.files++;
+        }// end add
+
+        void merge(final UsageTotal other) {
+            this.bytes += other.bytes;
+            this.files += other.files;
+        }// end merge
+
+    }// end class UsageTotal
+
+    // Counters for the Prometheus exporter. The hot paths only touch LongAdders,
+    // and labelled counters are created once per label in a ConcurrentHashMap.
+    private static final class Metrics {
+
+        static final ConcurrentHashMap<String, LongAdder> COMMANDS = new ConcurrentHashMap<String, LongAdder>();
+
+        static final ConcurrentHashMap<String, LongAdder> CALLS = new ConcurrentHashMap<String, LongAdder>();
+
+        static final ConcurrentHashMap<String, LongAdder> RETRIES = new ConcurrentHashMap<String, LongAdder>();
+
+        static final ConcurrentHashMap<String, LongAdder> TRANSFERS = new ConcurrentHashMap<String, LongAdder>();
+
+        static final LongAdder BYTES_GET = new LongAdder();
+
+        static final LongAdder BYTES_PUT = new LongAdder();
+
+        static final LongAdder BYTES_COPY = new LongAdder(); // xcp between accounts, no local disk on either end
+
+        static final LongAdder ACTIVE = new LongAdder();
+
+        static void count(final ConcurrentHashMap<String, LongAdder> counters, final String key) {
+
+            LongAdder counter = counters.get(key);
+
+            if (counter == null) {
+                final LongAdder fresh = new LongAdder();
+                counter = counters.putIfAbsent(key, fresh);
+                if (counter == null) {
+                    counter = fresh;
+                } // end if
+            } // end if
+
+            counter.increment();
+
+        }// end count
+
+        static void render(final StringBuilder text) {
+
+            Metrics.family(text, "dbxshell_commands_total", "Shell commands executed.", "command", Metrics.COMMANDS);
+            Metrics.family(text, "dbxshell_api_calls_total", "Dropbox API requests by endpoint and HTTP status.",
+                    "endpoint,status", Metrics.CALLS);
+            Metrics.family(text, "dbxshell_retries_total", "Operations retried after a failure or backoff.",
+                    "operation", Metrics.RETRIES);
+            Metrics.family(text, "dbxshell_transfers_total", "Transfers finished, by direction.", "direction",
+                    Metrics.TRANSFERS);
+
+            text.append("# HELP dbxshell_transfer_bytes_total Bytes moved by get, put and xcp.\n");
+            text.append("# TYPE dbxshell_transfer_bytes_total counter\n");
+            text.append("dbxshell_transfer_bytes_total{direction=\"get\"} ").append(Metrics.BYTES_GET.sum()).append('\n');
+            text.append("dbxshell_transfer_bytes_total{direction=\"put\"} ").append(Metrics.BYTES_PUT.sum()).append('\n');
+            text.append("dbxshell_transfer_bytes_total{direction=\"xcp\"} ").append(Metrics.BYTES_COPY.sum()).append('\n');
+
+            Metrics.sample(text, "dbxshell_transfers_active", "gauge", "Transfers in progress.", Metrics.ACTIVE.sum());
+
+        }// end render
+
+        // labels are joined with commas in the key, in the order of 'names'
+        private static void family(final StringBuilder text, final String name, final String help,
+                final String names, final ConcurrentHashMap<String, LongAdder> counters) {
+
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(" counter\n");
+
+            final String[] labels = names.split(",");
+
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters).entrySet()) {
+
+                final String[] values = entry.getKey().split(",", labels.length);
+
+                text.append(name).append('{');
+
+                for (int x = 0; x < labels.length; x++) {
+                    text.append(x > 0 ? "," : "").append(labels[x]).append("=\"");
+                    text.append(x < values.length ? Metrics.escape(values[x]) : "").append('"');
+                } // end for
+
+                text.append("} ").append(entry.getValue().sum()).append('\n');
+
+            } // end for
+
+        }// end family
+
+        static void sample(final StringBuilder text, final String name, final String type, final String help,
+                final Number value) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            text.append(name).append(' ').append(value).append('\n');
+        }// end sample
+
+        private static String escape(final String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }// end escape
+
+        static HttpRequestor wrap(final HttpRequestor base) {
+
+            return new HttpRequestor() {
+
+                @Override
+                public Response doGet(final String url, final Iterable<Header> headers) throws IOException {
+
+                    String status = "io_error";
+
+                    try {
+                        final Response response = base.doGet(url, headers);
+                        status = Integer.toString(response.getStatusCode());
+                        return response;
+                    } finally {
+                        Metrics.count(Metrics.CALLS, DBXShell.endpointOf(url) + "," + status);
+                    } // end try
+
+                }// end doGet
+
+                @Override
+                public Uploader startPost(final String url, final Iterable<Header> headers) throws IOException {
+                    return Metrics.watch(base, url, headers, true);
+                }// end startPost
+
+                @Override
+                public Uploader startPut(final String url, final Iterable<Header> headers) throws IOException {
+                    return Metrics.watch(base, url, headers, false);
+                }// end startPut
+
+            };
+
+        }// end wrap
+
+        private static HttpRequestor.Uploader watch(final HttpRequestor base, final String url,
+                final Iterable<HttpRequestor.Header> headers, final boolean post) throws IOException {
+
+            final String endpoint = DBXShell.endpointOf(url);
+            final HttpRequestor.Uploader uploader;
+
+            try {
+                uploader = post ? base.startPost(url, headers) : base.startPut(url, headers);
+            } catch (IOException ex) {
+                Metrics.count(Metrics.CALLS, endpoint + ",io_error");
+                throw ex;
+            } // end try
+
+            return new HttpRequestor.Uploader() {
+
+                private boolean done = false;
+
+                @Override
+                public OutputStream getBody() {
+                    return uploader.getBody();
+                }// end getBody
+
+                @Override
+                public void close() {
+                    uploader.close();
+                    this.record("aborted");
+                }// end close
+
+                @Override
+                public void abort() {
+                    uploader.abort();
+                    this.record("aborted");
+                }// end abort
+
+                @Override
+                public HttpRequestor.Response finish() throws IOException {
+
+                    String status = "io_error";
+
+                    try {
+                        final HttpRequestor.Response response = uploader.finish();
+                        status = Integer.toString(response.getStatusCode());
+                        return response;
+                    } finally {
+                        this.record(status);
+                    } // end try
+
+                }// end finish
+
+                private void record(final String status) {
+
+                    if (!this.done) {
+                        this.done = true;
+                        Metrics.count(Metrics.CALLS, endpoint + "," + status);
+                    } // end if
+
+                }// end record
+
+            };
+
+        }// end watch
+
+    }// end class Metrics
+
+    // Java Flight Recorder events for each command, each Dropbox API request and
+    // each transfer. Only loaded when jdk.jfr exists (DBX_FLIGHT), and an event
+    // with no recording running costs a begin and a shouldCommit check.
+    private static final class Flight {
+
+        static final int COMMAND  = 0;
+        static final int API      = 1;
+        static final int TRANSFER = 2;
+
+        private static final Pattern PATH = Pattern.compile("\"path\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+        @Name("dbxshell.Command")
+        @Label("Shell Command")
+        @Category("DBXShell")
+        @Description("One command dispatched by the shell")
+        static final class CommandEvent extends Event {
+
+            @Label("Command")
+            String command;
+
+            @Label("Arguments")
+            String arguments;
+
+            @Label("Remote Directory")
+            String directory;
+
+        }// end class CommandEvent
+
+        @Name("dbxshell.ApiCall")
+        @Label("Dropbox API Call")
+        @Category("DBXShell")
+        @Description("One HTTP request to the Dropbox API, until the response headers arrive")
+        static final class ApiEvent extends Event {
+
+            @Label("Endpoint")
+            String endpoint;
+
+            @Label("Path")
+            String path;
+
+            @Label("Status")
+            int status;
+
+        }// end class ApiEvent
+
+        @Name("dbxshell.Transfer")
+        @Label("File Transfer")
+        @Category("DBXShell")
+        @Description("One get or put, from the first byte to the last")
+        static final class TransferEvent extends Event {
+
+            @Label("Direction")
+            String direction;
+
+            @Label("Name")
+            String name;
+
+            @Label("Bytes")
+            @DataAmount
+            long bytes;
+
+            @Label("Throughput")
+            @DataAmount
+            @Frequency
+            long throughput;
+
+        }// end class TransferEvent
+
+        static Object begin(final int kind) {
+
+            final Event event;
+
+            switch (kind) {
+                case COMMAND:
+                    event = new CommandEvent();
+                    break;
+                case API:
+                    event = new ApiEvent();
+                    break;
+                default:
+                    event = new TransferEvent();
+                    break;
+            } // end switch
+
+            event.begin();
+            return event;
+
+        }// end begin
+
+        static void command(final Object handle, final String[] param, final String directory) {
+
+            final CommandEvent event = (CommandEvent) handle;
+            event.end();
+
+            if (event.shouldCommit()) {
+
+                final StringBuilder arguments = new StringBuilder();
+
+                for (int x = 1; x < param.length; x++) {
+                    arguments.append(x > 1 ? " " : "").append(param[x]);
+                } // end for
+
+                event.command = param[0];
+                event.arguments = DBXShell.isSecretCommand(param[0]) ? "" : arguments.toString();
+                event.directory = directory;
+                event.commit();
+
+            } // end if
+
+        }// end command
+
+        static void api(final Object handle, final String url, final String arg, final int status) {
+
+            final ApiEvent event = (ApiEvent) handle;
+            event.end();
+
+            if (event.shouldCommit()) {
+
+                event.endpoint = DBXShell.endpointOf(url);
+
+                if (arg != null) {
+                    final Matcher match = Flight.PATH.matcher(arg);
+                    event.path = match.find() ? match.group(1) : null;
+                } // end if
+
+                event.status = status;
+                event.commit();
+
+            } // end if
+
+        }// end api
+
+        static void transfer(final Object handle, final String direction, final String name, final long bytes,
+                final double rate) {
+
+            final TransferEvent event = (TransferEvent) handle;
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.direction = direction;
+                event.name = name;
+                event.bytes = bytes;
+                event.throughput = (long) rate;
+                event.commit();
+            } // end if
+
+        }// end transfer
+
+        static HttpRequestor wrap(final HttpRequestor base) {
+
+            return new HttpRequestor() {
+
+                @Override
+                public Response doGet(final String url, final Iterable<Header> headers) throws IOException {
+
+                    final Object event = Flight.begin(Flight.API);
+                    int status = -1;
+
+                    try {
+                        final Response response = base.doGet(url, headers);
+                        status = response.getStatusCode();
+                        return response;
+                    } finally {
+                        Flight.api(event, url, null, status);
+                    } // end try
+
+                }// end doGet
+
+                @Override
+                public Uploader startPost(final String url, final Iterable<Header> headers) throws IOException {
+
+                    final Object event = Flight.begin(Flight.API);
+
+                    try {
+                        return Flight.watch(event, base.startPost(url, headers), url, headers);
+                    } catch (IOException ex) {
+                        Flight.api(event, url, null, -1);
+                        throw ex;
+                    } // end try
+
+                }// end startPost
+
+                @Override
+                public Uploader startPut(final String url, final Iterable<Header> headers) throws IOException {
+
+                    final Object event = Flight.begin(Flight.API);
+
+                    try {
+                        return Flight.watch(event, base.startPut(url, headers), url, headers);
+                    } catch (IOException ex) {
+                        Flight.api(event, url, null, -1);
+                        throw ex;
+                    } // end try
+
+                }// end startPut
+
+            };
+
+        }// end wrap
+
+        // Times a request from its start to finish(). The path is read from the
+        // Dropbox-API-Arg header of content calls, or from the start of the JSON
+        // body of RPC calls; only the first bytes of a body are kept for that.
+        private static HttpRequestor.Uploader watch(final Object event, final HttpRequestor.Uploader uploader,
+                final String url, final Iterable<HttpRequestor.Header> headers) {
+
+            String header = null;
+
+            for (HttpRequestor.Header entry : headers) {
+                if (entry.getKey().equalsIgnoreCase("Dropbox-API-Arg")) {
+                    header = entry.getValue();
+                } // end if
+            } // end for
+
+            final String arg = header;
+            final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+
+            return new HttpRequestor.Uploader() {
+
+                private boolean done = false;
+
+                @Override
+                public OutputStream getBody() {
+
+                    final OutputStream body = uploader.getBody();
+
+                    if (arg != null || !((Event) event).isEnabled()) {
+                        return body;
+                    } // end if
+
+                    return new FilterOutputStream(body) {
+                        @Override
+                        public void write(final byte[] buffer, final int offset, final int length)
+                                throws IOException {
+                            this.out.write(buffer, offset, length);
+                            prefix.write(buffer, offset, Math.min(length, Math.max(0, 1024 - prefix.size())));
+                        }// end write
+                    };
+
+                }// end getBody
+
+                @Override
+                public void close() {
+                    uploader.close();
+                    this.record(-1);
+                }// end close
+
+                @Override
+                public void abort() {
+                    uploader.abort();
+                    this.record(-1);
+                }// end abort
+
+                @Override
+                public HttpRequestor.Response finish() throws IOException {
+
+                    int status = -1;
+
+                    try {
+                        final HttpRequestor.Response response = uploader.finish();
+                        status = response.getStatusCode();
+                        return response;
+                    } finally {
+                        this.record(status);
+                    } // end try
+
+                }// end finish
+
+                private void record(final int status) {
+
+                    if (this.done) {
+                        return;
+                    } // end if
+
+                    this.done = true;
+                    Flight.api(event, url, arg != null ? arg : new String(prefix.toByteArray(), StandardCharsets.UTF_8),
+                            status);
+
+                }// end record
+
+            };
+
+        }// end watch
+
+    }// end class Flight
 
 }// end class DBXShell
 